@@ -0,0 +1,170 @@
+import java.util.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-18
+ *
+ * Applies ship movements to a ProximityAlerts object from a thread of its
+ * own, so that the updater threads never wait on its (single) lock. Only
+ * the latest position of each ship is kept until it is applied; if ships
+ * move faster than alerts can be revised, intermediate positions are
+ * skipped rather than piling up.
+ *
+ * A ship's pending position is kept in an object that lives as long as
+ * the ship does, and is copied out under the lock into scratch objects
+ * that are reused, so that passing movements on makes no garbage.
+ */
+public class AlertUpdater extends SaneThread {
+    private ProximityAlerts alerts;
+    private HashMap<String, Fix> fixes;
+    private ArrayDeque<Fix> dirty;
+    private ArrayList<Fix> batch;
+    private boolean closed;
+    private long applied;
+
+    /**
+     * Constructor.
+     *
+     * @param alerts ProximityAlerts to keep up to date.
+     * @return Constructed object.
+     */
+    public AlertUpdater(ProximityAlerts alerts) {
+        this.alerts = alerts;
+        fixes = new HashMap<String, Fix>();
+        dirty = new ArrayDeque<Fix>();
+        batch = new ArrayList<Fix>();
+        closed = false;
+        applied = 0;
+        setDaemon(true);
+    }
+
+    /**
+     * Get the ProximityAlerts object being kept up to date.
+     *
+     * @return A ProximityAlerts object.
+     */
+    public ProximityAlerts getProximityAlerts() {
+        return alerts;
+    }
+
+    /**
+     * Note that a ship has moved. Any unknown value is passed as NaN.
+     *
+     * @param mmsi MMSI of the ship.
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @param sog Speed over ground in knots.
+     * @param cog Course over ground in degrees.
+     * @param time When the ship reported this, in milliseconds since the
+     *     epoch.
+     */
+    public synchronized void moved(String mmsi, float lat, float lon,
+            float sog, float cog, long time) {
+        Fix fix = fixes.get(mmsi);
+        if (fix == null) {
+            fix = new Fix();
+            fix.mmsi = mmsi;
+            fixes.put(mmsi, fix);
+        }
+        fix.set(lat, lon, sog, cog, time);
+        fix.gone = false;
+        markDirty(fix);
+    }
+
+    /**
+     * Note that a ship is no longer being tracked.
+     *
+     * @param mmsi MMSI of the ship.
+     */
+    public synchronized void removed(String mmsi) {
+        Fix fix = fixes.get(mmsi);
+        if (fix == null)
+            return;  /* never passed on, so nothing to forget */
+        fix.gone = true;
+        markDirty(fix);
+    }
+
+    private void markDirty(Fix fix) {
+        if (fix.dirty)
+            return;
+        fix.dirty = true;
+        dirty.addLast(fix);
+        notifyAll();
+    }
+
+    /**
+     * Stop once everything pending has been applied.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Get number of movements and removals applied so far.
+     *
+     * @return A long value.
+     */
+    public synchronized long getApplied() {
+        return applied;
+    }
+
+    /* copy everything pending into batch, returning how many, or -1 if
+       closed and there is nothing left */
+    private synchronized int drain() throws InterruptedException {
+        while (dirty.isEmpty() && !closed)
+            wait();
+        int n = 0;
+        Fix fix;
+        while ((fix = dirty.pollFirst()) != null) {
+            if (n == batch.size())
+                batch.add(new Fix());
+            batch.get(n++).copy(fix);
+            fix.dirty = false;
+            if (fix.gone)
+                fixes.remove(fix.mmsi);
+        }
+        applied += n;
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Run the thread. Exits once closed and drained.
+     */
+    void runn() throws Exception {
+        int n;
+        while ((n = drain()) >= 0) {
+            for (int i = 0; i < n; i++) {
+                Fix fix = batch.get(i);
+                if (fix.gone)
+                    alerts.remove(fix.mmsi);
+                else
+                    alerts.update(fix.mmsi, fix.lat, fix.lon, fix.sog,
+                        fix.cog, fix.time);
+            }
+        }
+    }
+
+    /* the latest news about one ship */
+    private static class Fix {
+        public String mmsi;
+        public float lat, lon, sog, cog;
+        public long time;
+        public boolean gone, dirty;
+
+        public void set(float lat, float lon, float sog, float cog, long time) {
+            this.lat = lat;
+            this.lon = lon;
+            this.sog = sog;
+            this.cog = cog;
+            this.time = time;
+        }
+
+        public void copy(Fix other) {
+            mmsi = other.mmsi;
+            set(other.lat, other.lon, other.sog, other.cog, other.time);
+            gone = other.gone;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import javax.xml.stream.*;
+import dk.tbsalling.aismessages.nmea.messages.NMEAMessage;
+import dk.tbsalling.aismessages.ais.messages.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-18
+ *
+ * Measures how much garbage the hot paths make. First, per message, end
+ * to end: decoding it (including duplicate checking, and the fields we
+ * use, which the aismessages library decodes lazily), logging it, and
+ * queueing it and applying it to the ships, with collision-risk alerts on
+ * as by default; what the alerts thread allocates meanwhile is counted
+ * separately. Then, per call, some operations done when serving requests:
+ * formatting an MMSI, plotting a ship, formatting a time of day, and
+ * marking a ship updated.
+ *
+ * Uses the per-thread allocation counter in HotSpot's ThreadMXBean, so
+ * needs a JVM that has one. Each line of output is one round; the first
+ * includes JIT warm-up and is best ignored.
+ *
+ * Usage: java AllocBench [calls [rounds]]
+ */
+public class AllocBench {
+    private static final String MYNAME = "AllocBench";
+    private static final int DEFAULT_CALLS = 200000;
+    private static final int DEFAULT_ROUNDS = 3;
+    private static final int SHIPS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int ncalls = BenchArgs.intArg(MYNAME, args, 0, DEFAULT_CALLS);
+        int nrounds = BenchArgs.intArg(MYNAME, args, 1, DEFAULT_ROUNDS);
+
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if (!(tmx instanceof com.sun.management.ThreadMXBean)) {
+            System.err.format("%s: this JVM cannot count allocations%n", MYNAME);
+            System.exit(1);
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) tmx;
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long tid = Thread.currentThread().getId();
+
+        perMessage(mx, tid, ncalls, nrounds);
+        System.out.println();
+
+        PlottableShip ship = new PlottableShip("366123456");
+        ship.setLatitude(47.6062f);
+        ship.setLongitude(-122.3321f);
+        ship.setSpeedOverGround(12.3f);
+        ship.setCourseOverGround(271.5f);
+        ship.setShipName("EXAMPLE");
+        ship.setCallsign("WDA1234");
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(
+            new OutputStream() {
+                public void write(int b) { }
+                public void write(byte[] b, int off, int len) { }
+            }, "UTF-8");
+        TextBuffer text = new TextBuffer();
+
+        System.out.format("bytes allocated per call, %d calls per round%n", ncalls);
+        System.out.format("%12s %12s %12s %12s%n",
+            "formatMMSI", "plot", "appendTime", "markUpdated");
+        for (int round = 0; round < nrounds; round++) {
+            long b0 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < ncalls; i++)
+                PlottableShip.formatMMSI(366000000L + i);
+            long b1 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < ncalls; i++)
+                ship.plot(writer, text);
+            long b2 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < ncalls; i++)
+                text.clear().appendTime(System.currentTimeMillis());
+            long b3 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < ncalls; i++)
+                ship.markUpdated();
+            long b4 = mx.getThreadAllocatedBytes(tid);
+            System.out.format("%12.1f %12.1f %12.1f %12.1f%n",
+                (double) (b1 - b0) / ncalls, (double) (b2 - b1) / ncalls,
+                (double) (b3 - b2) / ncalls, (double) (b4 - b3) / ncalls);
+        }
+    }
+
+    /* allocations per message along the whole ingest path */
+    private static void perMessage(com.sun.management.ThreadMXBean mx, long tid,
+            int nmessages, int nrounds) throws Exception {
+        /* a feed of position reports, as text */
+        Random random = new Random(1);
+        String[] lines = new String[nmessages];
+        for (int i = 0; i < nmessages; i++)
+            lines[i] = ShardBench.positionReport(200000000L + random.nextInt(SHIPS),
+                47.0 + random.nextDouble(), -123.0 + random.nextDouble(),
+                random.nextInt(300) / 10.0, random.nextInt(3600) / 10.0);
+
+        DuplicateFilter dups = new DuplicateFilter(5000, 4096);
+        AlertUpdater alerts = new AlertUpdater(new ProximityAlerts(
+            KMLDecoder.DEFAULT_CPA_RADIUS, KMLDecoder.DEFAULT_CPA_DISTANCE,
+            KMLDecoder.DEFAULT_CPA_TIME));
+        alerts.start();
+        PlottableShips ships = new PlottableShips(
+            Runtime.getRuntime().availableProcessors(), alerts, new RetentionPolicy());
+        ConflatingQueue queue = new ConflatingQueue(KMLDecoder.DEFAULT_QUEUE_CAPACITY,
+            KMLDecoder.DEFAULT_QUEUE_CAPACITY, ConflatingQueue.Policy.BLOCK);
+        TextBuffer text = new TextBuffer();
+        Writer out = new Writer() {
+            public void write(char[] cbuf, int off, int len) { }
+            public void flush() { }
+            public void close() { }
+        };
+        String when = "2016-02-18T12:00:00Z";
+        String[] mmsis = new String[nmessages];
+        AISMessage[] messages = new AISMessage[nmessages];
+
+        System.out.format("bytes allocated per message, %d messages per round%n",
+            nmessages);
+        System.out.format("%12s %12s %12s %12s %12s%n",
+            "decode", "log", "update", "total", "alerts");
+        for (int round = 0; round < nrounds; round++) {
+            long a0 = mx.getThreadAllocatedBytes(alerts.getId());
+            long b0 = mx.getThreadAllocatedBytes(tid);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < nmessages; i++) {
+                String line = lines[i];
+                if (DuplicateFilter.fragmentCount(line) == 1)
+                    dups.isDuplicate(DuplicateFilter.hashPayload(line,
+                        DuplicateFilter.SEED), now + i);
+                messages[i] = AISMessage.create(NMEAMessage.fromString(line));
+                mmsis[i] = PlottableShip.formatMMSI(messages[i].getSourceMmsi().getMMSI());
+                touch(messages[i]);
+            }
+            long b1 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < nmessages; i++)
+                KMLDecoder.logMessage(out, text, when, messages[i], mmsis[i], null);
+            long b2 = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < nmessages; i++) {
+                queue.offer(mmsis[i], messages[i]);
+                ConflatingQueue.Entry entry = queue.take();
+                ships.addOrUpdate(entry.getMMSI(), entry.getMessage());
+            }
+            long b3 = mx.getThreadAllocatedBytes(tid);
+            long a1 = mx.getThreadAllocatedBytes(alerts.getId());
+            System.out.format("%12.1f %12.1f %12.1f %12.1f %12.1f%n",
+                (double) (b1 - b0) / nmessages, (double) (b2 - b1) / nmessages,
+                (double) (b3 - b2) / nmessages, (double) (b3 - b0) / nmessages,
+                (double) (a1 - a0) / nmessages);
+        }
+        alerts.close();
+        alerts.join();
+    }
+
+    /* The library decodes fields when first asked for them, then keeps
+       them. Ask for the ones we use, so that decoding gets counted as
+       such, not against whatever happens to ask first. */
+    private static void touch(AISMessage message) {
+        if (message instanceof DynamicDataReport) {
+            DynamicDataReport report = (DynamicDataReport) message;
+            report.getLatitude();
+            report.getLongitude();
+            report.getSpeedOverGround();
+            report.getCourseOverGround();
+        }
+    }
+}
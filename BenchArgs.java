@@ -0,0 +1,34 @@
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-18
+ *
+ * Command-line argument parsing shared by the benchmark programs.
+ */
+class BenchArgs {
+    /**
+     * Get a positive integer argument, exiting with a message if it is
+     * not one.
+     *
+     * @param myname Name of the program, for the message.
+     * @param args Command-line arguments.
+     * @param i Which argument to get.
+     * @param defaultValue Value if there is no such argument.
+     * @return An int value.
+     */
+    public static int intArg(String myname, String[] args, int i,
+            int defaultValue) {
+        if (args.length <= i)
+            return defaultValue;
+        try {
+            int ret = Integer.parseInt(args[i]);
+            if (ret > 0)
+                return ret;
+        } catch (NumberFormatException nfe) {
+            /* fall through */
+        }
+        System.err.format("%s: invalid number \"%s\"%n", myname, args[i]);
+        System.exit(2);
+        return defaultValue;  /* not reached */
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.*;
+import dk.tbsalling.aismessages.ais.messages.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-12
+ *
+ * A bounded queue of decoded messages awaiting application to the ships
+ * being tracked. If a position report arrives for a ship which already
+ * has one waiting, the waiting one is simply replaced (conflated), since
+ * it would be overwritten anyway. Only reports carrying nothing but
+ * dynamic data are treated this way; anything with static fields in it
+ * (including Class B extended position reports, which carry the ship's
+ * name) is never conflated or shed, lest those fields be lost.
+ *
+ * Once the queue holds highWater messages, position reports are shed
+ * according to a Policy. Once it holds capacity messages, offer blocks
+ * until there is room, so the producer slows down (backpressure).
+ * Thread-safe.
+ */
+public class ConflatingQueue {
+    /**
+     * What to do with position reports above the high-water mark.
+     */
+    public enum Policy {
+        /** shed nothing; just block once the queue is full */
+        BLOCK,
+        /** discard incoming position reports */
+        DROP_NEWEST,
+        /** discard the oldest waiting position report */
+        DROP_OLDEST
+    }
+
+    private int capacity;
+    private int highWater;
+    private Policy policy;
+    private ArrayDeque<Entry> queue;
+    private HashMap<String, Entry> pending;
+    private boolean closed;
+    private long offered, coalesced, dropped;
+    private int maxDepth;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Most messages the queue may hold.
+     * @param highWater Number of messages at which shedding starts.
+     * @param policy How to shed.
+     * @return Constructed object.
+     */
+    public ConflatingQueue(int capacity, int highWater, Policy policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.highWater = Math.min(highWater, capacity);
+        this.policy = policy;
+        queue = new ArrayDeque<Entry>();
+        pending = new HashMap<String, Entry>();
+        closed = false;
+        offered = coalesced = dropped = 0;
+        maxDepth = 0;
+    }
+
+    /**
+     * Add a message to the queue, blocking if it is full.
+     *
+     * @param mmsi MMSI from the below message.
+     * @param message Any received AISMessage.
+     * @throws IllegalStateException If the queue is (or gets) closed.
+     */
+    public synchronized void offer(String mmsi, AISMessage message)
+            throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("queue is closed");
+        offered++;
+        boolean position = isPositionOnly(message);
+
+        /* conflate with a waiting position report if we can */
+        if (position) {
+            Entry waiting = pending.get(mmsi);
+            if (waiting != null) {
+                waiting.message = message;
+                coalesced++;
+                return;
+            }
+        }
+
+        /* shed if above the high-water mark */
+        if (position && queue.size() >= highWater) {
+            if (policy == Policy.DROP_NEWEST) {
+                dropped++;
+                return;
+            }
+            if (policy == Policy.DROP_OLDEST && dropOldest())
+                dropped++;
+        }
+
+        /* apply backpressure if full */
+        while (queue.size() >= capacity && !closed)
+            wait();
+        if (closed)
+            throw new IllegalStateException("queue is closed");
+
+        Entry entry = new Entry(mmsi, message, position);
+        queue.addLast(entry);
+        if (position)
+            pending.put(mmsi, entry);
+        maxDepth = Math.max(maxDepth, queue.size());
+        notifyAll();
+    }
+
+    /* does this message carry only dynamic (position) data? */
+    private static boolean isPositionOnly(AISMessage message) {
+        return message instanceof DynamicDataReport
+            && !(message instanceof StaticDataReport)
+            && !(message instanceof ExtendedClassBEquipmentPositionReport);
+    }
+
+    /* drop the oldest position report, returning false if there are none */
+    private boolean dropOldest() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.position) {
+                it.remove();
+                pending.remove(entry.mmsi);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the next message from the queue, blocking if there is none.
+     *
+     * @return Entry object, or null if the queue is closed and empty.
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (queue.isEmpty() && !closed)
+            wait();
+        Entry ret = queue.pollFirst();
+        if (ret == null)
+            return null;
+        if (ret.position)
+            pending.remove(ret.mmsi);
+        notifyAll();
+        return ret;
+    }
+
+    /**
+     * Close the queue. Nothing more may be offered, and take returns null
+     * once what is there has been taken.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Get number of messages offered.
+     *
+     * @return A long value.
+     */
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    /**
+     * Get number of messages that replaced a waiting one.
+     *
+     * @return A long value.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Get number of messages shed.
+     *
+     * @return A long value.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the most messages that have ever been waiting at once.
+     *
+     * @return An int value.
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * A queued message.
+     */
+    public static class Entry {
+        private String mmsi;
+        private AISMessage message;
+        private boolean position;
+
+        private Entry(String mmsi, AISMessage message, boolean position) {
+            this.mmsi = mmsi;
+            this.message = message;
+            this.position = position;
+        }
+
+        public String getMMSI() {
+            return mmsi;
+        }
+
+        public AISMessage getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.util.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-06
+ *
+ * Suppresses duplicate AIS messages, such as happen when more than one
+ * receiver hears the same transmission. Messages are identified by a
+ * 64-bit hash of their armored payload, which is computed directly from
+ * the raw NMEA sentence so that duplicates can be dropped before anything
+ * gets parsed (and thus before anything gets allocated).
+ *
+ * Hashes are remembered in a fixed number of time buckets, each a fixed
+ * size open-addressed table, so memory use never grows no matter how
+ * busy things get. When a table fills up, the oldest-inserted entries in
+ * the probe sequence get overwritten; the worst this can do is let an
+ * occasional duplicate through. Not thread-safe; it is only used by the
+ * input loop.
+ *
+ * Because whole buckets are forgotten at once, the window is a minimum:
+ * a hash is remembered for at least that long, but may be remembered for
+ * up to NBUCKETS / (NBUCKETS - 1) times as long (i.e. a third longer).
+ */
+public class DuplicateFilter {
+    /* starting value for hashPayload */
+    public static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    /* how many buckets to split the window into */
+    private static final int NBUCKETS = 4;
+
+    /* maximum probe length when looking things up */
+    private static final int MAXPROBE = 8;
+
+    /* the empty-slot marker; real hashes that equal it get changed, and
+       hashPayload returns it when there is no payload */
+    public static final long EMPTY = 0L;
+
+    /* largest capacity allowed per bucket */
+    public static final int MAX_CAPACITY = 1 << 24;
+
+    private long[][] buckets;
+    private int[] rovers;
+    private int mask;
+    private long span;
+    private long currentEpoch;
+    private int current;
+    private long seen;
+    private long suppressed;
+
+    /**
+     * Constructor.
+     *
+     * @param window Least time, in milliseconds, to remember messages for.
+     * @param capacity Number of hashes each bucket holds (rounded up to
+     *     a power of two), at most MAX_CAPACITY.
+     * @return Constructed object.
+     */
+    public DuplicateFilter(long window, int capacity) {
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be from 1 to "
+                + MAX_CAPACITY);
+        int size = Integer.highestOneBit(Math.max(capacity, MAXPROBE) - 1) << 1;
+        buckets = new long[NBUCKETS][size];
+        rovers = new int[NBUCKETS];
+        mask = size - 1;
+        span = Math.max(window / (NBUCKETS - 1), 1L);
+        currentEpoch = 0;
+        current = 0;
+        seen = suppressed = 0;
+    }
+
+    /**
+     * Check if a message has been seen in the window, and remember it if
+     * it has not been.
+     *
+     * @param hash Payload hash, as returned by hashPayload.
+     * @param now Current time in milliseconds since the epoch.
+     * @return true if this message is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(long hash, long now) {
+        if (hash == EMPTY)
+            hash = PRIME;
+        rotate(now);
+        seen++;
+
+        /* look in all the live buckets */
+        int home = (int) (hash ^ (hash >>> 32)) & mask;
+        for (long[] bucket : buckets) {
+            for (int i = 0; i < MAXPROBE; i++) {
+                long probe = bucket[(home + i) & mask];
+                if (probe == hash) {
+                    suppressed++;
+                    return true;
+                }
+                if (probe == EMPTY)
+                    break;
+            }
+        }
+
+        /* not there, so add it to the current bucket */
+        long[] bucket = buckets[current];
+        for (int i = 0; i < MAXPROBE; i++) {
+            int slot = (home + i) & mask;
+            if (bucket[slot] == EMPTY) {
+                bucket[slot] = hash;
+                return false;
+            }
+        }
+        bucket[(home + rovers[current]) & mask] = hash;
+        rovers[current] = (rovers[current] + 1) % MAXPROBE;
+        return false;
+    }
+
+    /* advance to a new bucket (clearing it) if time has moved on */
+    private void rotate(long now) {
+        long epoch = now / span;
+        if (epoch == currentEpoch)
+            return;
+        long steps = Math.min(epoch - currentEpoch, NBUCKETS);
+        if (steps < 0)
+            steps = NBUCKETS;  /* the clock went backwards; start over */
+        for (long i = 0; i < steps; i++) {
+            current = (current + 1) % NBUCKETS;
+            Arrays.fill(buckets[current], EMPTY);
+            rovers[current] = 0;
+        }
+        currentEpoch = epoch;
+    }
+
+    /**
+     * Get number of messages checked.
+     *
+     * @return A long value.
+     */
+    public long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Get number of messages judged to be duplicates.
+     *
+     * @return A long value.
+     */
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Get the fraction of checked messages that were duplicates.
+     *
+     * @return A double value between 0 and 1.
+     */
+    public double getRatio() {
+        return seen == 0 ? 0.0 : (double) suppressed / (double) seen;
+    }
+
+    /**
+     * Hash the armored payload (the sixth field) of a raw NMEA sentence
+     * onto an existing hash value. Start with SEED; the hashes of
+     * successive fragments can be chained to hash a whole multi-fragment
+     * message.
+     *
+     * @param line A raw NMEA sentence.
+     * @param hash Hash value to continue from.
+     * @return The new hash value, or EMPTY (0) if there is no payload.
+     */
+    public static long hashPayload(String line, long hash) {
+        int start = fieldStart(line, 5);
+        if (start < 0)
+            return EMPTY;
+        int len = line.length();
+        int i;
+        for (i = start; i < len; i++) {
+            char c = line.charAt(i);
+            if (c == ',' || c == '*')
+                break;
+            hash = (hash ^ c) * PRIME;
+        }
+        return i == start ? EMPTY : hash;
+    }
+
+    /**
+     * Get the number of fragments (the second field) from a raw NMEA
+     * sentence.
+     *
+     * @param line A raw NMEA sentence.
+     * @return Fragment count, or -1 if it cannot be determined.
+     */
+    public static int fragmentCount(String line) {
+        return intField(line, 1);
+    }
+
+    /**
+     * Get the fragment number (the third field) from a raw NMEA sentence.
+     *
+     * @param line A raw NMEA sentence.
+     * @return Fragment number, or -1 if it cannot be determined.
+     */
+    public static int fragmentNumber(String line) {
+        return intField(line, 2);
+    }
+
+    /**
+     * Get the radio channel code (the fifth field) from a raw NMEA
+     * sentence.
+     *
+     * @param line A raw NMEA sentence.
+     * @return The channel code character, or 0 if there is none.
+     */
+    public static char channel(String line) {
+        int start = fieldStart(line, 4);
+        if (start < 0 || start >= line.length())
+            return 0;
+        char ret = line.charAt(start);
+        return ret == ',' ? 0 : ret;
+    }
+
+    /* parse the n'th field as a non-negative integer, or return -1 */
+    private static int intField(String line, int n) {
+        int start = fieldStart(line, n);
+        if (start < 0)
+            return -1;
+        int ret = 0;
+        int len = line.length();
+        int i;
+        for (i = start; i < len; i++) {
+            char c = line.charAt(i);
+            if (c == ',')
+                break;
+            if (c < '0' || c > '9')
+                return -1;
+            ret = ret * 10 + (c - '0');
+        }
+        return i == start ? -1 : ret;
+    }
+
+    /* find where the n'th comma-delimited field starts, or -1 */
+    private static int fieldStart(String line, int n) {
+        int pos = 0;
+        while (n-- > 0) {
+            pos = line.indexOf(',', pos);
+            if (pos < 0)
+                return -1;
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -24,11 +24,40 @@ public class KMLDecoder {
 
     private static final String MYNAME = "KMLDecoder";
     private static final String INDENT = "      ";
-    private static HashMap<String,ArrayList<NMEAMessage>> msgbuf;
+    private static final String NEWLINE = System.lineSeparator();
+    /* decimal places for logged positions */
+    private static final int POS_PLACES = 6;
+    /* for logging messages; only ever used by the main thread */
+    private static TextBuffer logbuf = new TextBuffer();
+    private static Writer stdout = new BufferedWriter(new OutputStreamWriter(System.out));
+    /* raw fragments of multi-fragment messages, by channel */
+    private static HashMap<String,ArrayList<String>> msgbuf;
+    private static HashMap<String,long[]> fraghash;
     private static String now;
+    private static long nowSecond;
     private static String line;
     private static final int DEFAULT_PORT = 8080;
 
+    /* duplicate suppression defaults, overridable via system properties */
+    private static final long DEFAULT_DEDUP_WINDOW = 5 * 1000;
+    private static final int DEFAULT_DEDUP_CAPACITY = 4096;
+
+    /* collision-risk alert defaults: look-ahead radius and CPA (nautical
+       miles) and TCPA (minutes) */
+    static final double DEFAULT_CPA_RADIUS = 6.0;
+    static final double DEFAULT_CPA_DISTANCE = 0.5;
+    static final double DEFAULT_CPA_TIME = 20.0;
+
+    /* how often to log statistics, in milliseconds */
+    private static final long STATS_INTERVAL = 10 * 60 * 1000;
+    private static DuplicateFilter dups;
+
+    /* ingest queue defaults, overridable via system properties */
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    static final String DEFAULT_QUEUE_POLICY = "DROP_OLDEST";
+    private static ConflatingQueue[] queues;
+    private static PlottableShips ships;
+
     public static void main(String[] args) throws Exception {
 
         /* Initialize things */
@@ -38,10 +67,35 @@ public class KMLDecoder {
         Environment env = SimpleDBHash.getEnvironment("db_env");
         SimpleDBHash calls = new SimpleDBHash(env, "calls");
         SimpleDBHash names = new SimpleDBHash(env, "names");
-        msgbuf = new HashMap<String,ArrayList<NMEAMessage>>();
-        msgbuf.put("A", new ArrayList<NMEAMessage>());
-        msgbuf.put("B", new ArrayList<NMEAMessage>());
-        PlottableShips ships = new PlottableShips();
+        msgbuf = new HashMap<String,ArrayList<String>>();
+        msgbuf.put("A", new ArrayList<String>());
+        msgbuf.put("B", new ArrayList<String>());
+        fraghash = new HashMap<String,long[]>();
+        fraghash.put("A", new long[] { DuplicateFilter.SEED });
+        fraghash.put("B", new long[] { DuplicateFilter.SEED });
+        long dedupWindow = Long.getLong("kmldecoder.dedup.window",
+            DEFAULT_DEDUP_WINDOW);
+        try {
+            dups = dedupWindow > 0 ? new DuplicateFilter(dedupWindow,
+                Integer.getInteger("kmldecoder.dedup.capacity", DEFAULT_DEDUP_CAPACITY))
+                : null;
+        } catch (IllegalArgumentException exc) {
+            System.err.format("%s: invalid duplicate suppression settings (%s)%n",
+                MYNAME, exc.getMessage());
+            System.exit(2);
+        }
+        long lastStats = System.currentTimeMillis();
+        double cpaRadius = doubleProperty("kmldecoder.cpa.radius", DEFAULT_CPA_RADIUS);
+        AlertUpdater alerts = null;
+        if (cpaRadius > 0.0) {
+            alerts = new AlertUpdater(new ProximityAlerts(cpaRadius,
+                doubleProperty("kmldecoder.cpa.distance", DEFAULT_CPA_DISTANCE),
+                doubleProperty("kmldecoder.cpa.time", DEFAULT_CPA_TIME)));
+            alerts.start();
+        }
+        ships = new PlottableShips(Integer.getInteger(
+            "kmldecoder.shards", Runtime.getRuntime().availableProcessors()),
+            alerts, getRetentionPolicy());
 
         /* Spawn a thread to listen for and deal with HTTP requests */
         int port = DEFAULT_PORT;
@@ -57,127 +111,221 @@ public class KMLDecoder {
         RequestListener listener = new RequestListener(port, ships);
         listener.start();
 
-        /* The main thread reads standard input and updates data */
-        while ((line = stdin.readLine()) != null) {
-            /* Silently discard obviously bad messages */
-            if (!line.startsWith("!")) {
-                continue;
+        /* Spawn threads to apply decoded messages to the ships. Each has
+           its own queue, and every message for a given ship goes to the
+           same one, so updates to any one ship stay in order. */
+        int nupdaters = Integer.getInteger("kmldecoder.updaters",
+            Runtime.getRuntime().availableProcessors());
+        int capacity = Integer.getInteger("kmldecoder.queue.capacity",
+            DEFAULT_QUEUE_CAPACITY);
+        int highWater = Integer.getInteger("kmldecoder.queue.highwater",
+            capacity * 4 / 5);
+        String policy = System.getProperty("kmldecoder.queue.policy",
+            DEFAULT_QUEUE_POLICY);
+        ShipUpdater[] updaters = null;
+        try {
+            if (nupdaters < 1)
+                throw new IllegalArgumentException("need at least one updater");
+            queues = new ConflatingQueue[nupdaters];
+            updaters = new ShipUpdater[nupdaters];
+            for (int i = 0; i < nupdaters; i++) {
+                queues[i] = new ConflatingQueue(
+                    Math.max(capacity / nupdaters, 1),
+                    Math.max(highWater / nupdaters, 1),
+                    ConflatingQueue.Policy.valueOf(policy));
+                updaters[i] = new ShipUpdater(queues[i], ships, names, calls);
             }
+        } catch (IllegalArgumentException exc) {
+            System.err.format("%s: invalid queue settings (%s)%n",
+                MYNAME, exc.getMessage());
+            System.exit(2);
+        }
+        for (ShipUpdater updater: updaters)
+            updater.start();
 
-            /* Get the time of this message */
-            now = iso8601.format(new Date());
+        /* The main thread reads standard input and updates data. The
+           queues get closed however this ends, so updaters always exit. */
+        boolean died = false;
+        try {
+            while ((line = stdin.readLine()) != null) {
+                /* Silently discard obviously bad messages */
+                if (!line.startsWith("!")) {
+                    continue;
+                }
 
-            /* Do preliminary parsing, bail on failure */
-            NMEAMessage nmsg = null;
-            try {
-                nmsg = NMEAMessage.fromString(line);
-            } catch (NMEAParseException exc) {
-                errmsg("Unable to parse");
-                continue;
-            } catch (InvalidMessage exc) {
-                errmsg("Invalid message");
-                continue;
-            } catch (dk.tbsalling.aismessages.nmea.exceptions.UnsupportedMessageType exc) {
-                errmsg("Unsupported message");
-                continue;
-            }
+                /* Drop complete messages that another receiver already gave
+                   us, before going to the expense of parsing them. */
+                long millis = System.currentTimeMillis();
+                int rawfrags = DuplicateFilter.fragmentCount(line);
+                if (dups != null && rawfrags == 1) {
+                    long hash = DuplicateFilter.hashPayload(line, DuplicateFilter.SEED);
+                    if (hash != DuplicateFilter.EMPTY && dups.isDuplicate(hash, millis))
+                        continue;
+                }
 
-            /* Determine channel */
-            String chan = nmsg.getRadioChannelCode();
-            if (!msgbuf.containsKey(chan)) {
-                errmsg("Invalid channel code " + chan);
-                continue;
-            }
+                /* Periodically say how we're doing */
+                if (millis - lastStats >= STATS_INTERVAL) {
+                    lastStats = millis;
+                    reportStats(iso8601.format(new Date(millis)));
+                }
 
-            /* Deal with any fragmentation */
-            int nfrag = nmsg.getNumberOfFragments();
-            AISMessage amsg = null;
-            try {
-                if (nfrag < 0) {
-                    errmsg("Invalid fragment count " + Integer.toString(nfrag));
-                } else if (nfrag == 1) {
-                    amsg = AISMessage.create(nmsg);
-                    clearbuf(chan);
-                } else {
-                    int fragno = nmsg.getFragmentNumber();
-                    if (fragno < 0 || fragno > nfrag) {
-                        errmsg("Invalid fragment number " + Integer.toString(fragno));
-                        clearbuf(chan);
-                        continue;
-                    }
-                    ArrayList<NMEAMessage> thisbuf = msgbuf.get(chan);
-                    int expected = thisbuf.size() + 1;
-                    if (fragno != expected) {
-                        errmsg("Expecting fragment " + Integer.toString(expected)
-                            + ", got " + Integer.toString(fragno) + "!");
-                        clearbuf(chan);
-                        continue;
-                    }
-                    thisbuf.add(nmsg);
-                    if (nfrag == fragno) {
-                        amsg = AISMessage.create(thisbuf.toArray(new NMEAMessage[thisbuf.size()]));
-                        clearbuf(chan);
-                    }
+                /* Get the time of this message; only reformatted when the
+                   second changes, since that is all it shows */
+                if (millis / 1000 != nowSecond) {
+                    nowSecond = millis / 1000;
+                    now = iso8601.format(new Date(millis));
                 }
-            } catch (InvalidMessage|InvalidAISMessage exc) {
-                errmsg("Invalid message");
-                continue;
-            } catch (dk.tbsalling.aismessages.ais.exceptions.UnsupportedMessageType exc) {
-                errmsg("Unsupported message");
-                continue;
-            }
 
-            /* If there was an error or incomplete message, we have nothing
-               to print. */
-            if (amsg == null)
-                continue;
-
-            /* Every message starts with a time stamp, message type, and MMSI */
-            String msgtype = amsg.getClass().getSimpleName();
-            String mmsi = PlottableShip.formatMMSI(amsg.getSourceMmsi().getMMSI());
-            System.out.format("%s %s %s%n", now, msgtype, mmsi);
-
-            /* Most of the ship updating happens here. Note that we also can
-               do purging in the RequestServer threads. */
-            if (ships.addOrUpdate(mmsi, amsg))
-                ships.rememberNameCall(mmsi, names.get(mmsi), calls.get(mmsi));
-            ships.purgeOld();
-
-            /* Messages that map MMSI to a ship name and/or callsign get
-               logged and tracked in persistent key/value stores */
-            if (amsg instanceof StaticDataReport) {
-                String shipName = ((StaticDataReport) amsg).getShipName();
-                String callsign = ((StaticDataReport) amsg).getCallsign();
-                boolean updated = false;
-                if (shipName != null) {
-                    names.put(mmsi, shipName);
-                    System.out.format("%sName = %s", INDENT, shipName);
-                    updated = true;
+                /* Multi-fragment messages are buffered raw, and only parsed
+                   once complete and known not to be duplicates */
+                if (rawfrags > 1) {
+                    AISMessage amsg = reassemble(rawfrags, millis);
+                    if (amsg != null)
+                        process(amsg, names, calls);
+                    continue;
                 }
-                if (callsign != null) {
-                    calls.put(mmsi, callsign);
-                    System.out.format("%sCallsign = %s",
-                        updated ? ", " : INDENT, callsign);
-                    updated = true;
+
+                /* Do preliminary parsing, bail on failure */
+                NMEAMessage nmsg = null;
+                try {
+                    nmsg = NMEAMessage.fromString(line);
+                } catch (NMEAParseException exc) {
+                    errmsg("Unable to parse");
+                    continue;
+                } catch (InvalidMessage exc) {
+                    errmsg("Invalid message");
+                    continue;
+                } catch (dk.tbsalling.aismessages.nmea.exceptions.UnsupportedMessageType exc) {
+                    errmsg("Unsupported message");
+                    continue;
                 }
-                System.out.println();
-            }
 
-            /* Messages that report positions get logged */
-            else if (amsg instanceof DynamicDataReport) {
-                String shipName = names.get(mmsi);
-                System.out.print(INDENT);
-                if (shipName != null)
-                    System.out.format("%s ", shipName);
-                System.out.format("@ %f, %f%n",
-                    ((DynamicDataReport) amsg).getLatitude(),
-                    ((DynamicDataReport) amsg).getLongitude());
+                /* Determine channel */
+                String chan = nmsg.getRadioChannelCode();
+                if (!msgbuf.containsKey(chan)) {
+                    errmsg("Invalid channel code " + chan);
+                    continue;
+                }
+
+                /* Anything that gets here should be a single fragment */
+                int nfrag = nmsg.getNumberOfFragments();
+                AISMessage amsg = null;
+                try {
+                    if (nfrag != 1) {
+                        errmsg("Invalid fragment count " + Integer.toString(nfrag));
+                    } else {
+                        amsg = AISMessage.create(nmsg);
+                        clearbuf(chan);
+                    }
+                } catch (InvalidMessage|InvalidAISMessage exc) {
+                    errmsg("Invalid message");
+                    continue;
+                } catch (dk.tbsalling.aismessages.ais.exceptions.UnsupportedMessageType exc) {
+                    errmsg("Unsupported message");
+                    continue;
+                }
+
+                /* If there was an error or incomplete message, we have nothing
+                   to print. */
+                if (amsg == null)
+                    continue;
+
+                process(amsg, names, calls);
             }
+        } catch (IllegalStateException exc) {
+            /* a queue only gets closed early if its updater died */
+            System.err.format("%s: an updater thread died, exiting%n", MYNAME);
+            died = true;
+        } finally {
+            for (ConflatingQueue queue: queues)
+                queue.close();
         }
 
+        /* either way, wrap things up tidily */
+        for (ShipUpdater updater: updaters)
+            updater.join();
+        reportStats(iso8601.format(new Date()));
         calls.close();
         names.close();
         env.close();
+        if (died)
+            System.exit(1);
+    }
+
+    /* log a decoded message, queue it for the ShipUpdater, and remember
+       any names and callsigns it has */
+    private static void process(AISMessage amsg, SimpleDBHash names,
+            SimpleDBHash calls) throws InterruptedException, IOException {
+        String mmsi = PlottableShip.formatMMSI(amsg.getSourceMmsi().getMMSI());
+
+        /* Most of the ship updating happens in the ShipUpdater
+           threads, which take messages from these queues. */
+        queues[PlottableShips.stripe(mmsi, queues.length)].offer(mmsi, amsg);
+
+        /* Messages that map MMSI to a ship name and/or callsign get
+           tracked in persistent key/value stores; position reports get
+           logged with the name we know the ship by */
+        String shipName = null;
+        if (amsg instanceof StaticDataReport) {
+            String name = ((StaticDataReport) amsg).getShipName();
+            String callsign = ((StaticDataReport) amsg).getCallsign();
+            if (name != null)
+                names.put(mmsi, name);
+            if (callsign != null)
+                calls.put(mmsi, callsign);
+        } else if (amsg instanceof DynamicDataReport) {
+            shipName = names.get(mmsi);
+        }
+        logMessage(stdout, logbuf, now, amsg, mmsi, shipName);
+    }
+
+    /**
+     * Log a decoded message, without making the garbage that a Formatter
+     * would.
+     *
+     * @param out Where to log to; flushed afterwards.
+     * @param text TextBuffer to build up the log entry in.
+     * @param when Time stamp to log the message with.
+     * @param amsg The message.
+     * @param mmsi Its MMSI, already formatted.
+     * @param shipName Name of the ship, for position reports, if known.
+     */
+    static void logMessage(Writer out, TextBuffer text, String when,
+            AISMessage amsg, String mmsi, String shipName) throws IOException {
+        /* Every message starts with a time stamp, message type, and MMSI */
+        text.clear().append(when).append(' ')
+            .append(amsg.getClass().getSimpleName()).append(' ')
+            .append(mmsi).append(NEWLINE);
+
+        /* Names and callsigns, or positions, get logged on the next line */
+        if (amsg instanceof StaticDataReport) {
+            String name = ((StaticDataReport) amsg).getShipName();
+            String callsign = ((StaticDataReport) amsg).getCallsign();
+            if (name != null)
+                text.append(INDENT).append("Name = ").append(name);
+            if (callsign != null)
+                text.append(name != null ? ", " : INDENT)
+                    .append("Callsign = ").append(callsign);
+            text.append(NEWLINE);
+        } else if (amsg instanceof DynamicDataReport) {
+            text.append(INDENT);
+            if (shipName != null)
+                text.append(shipName).append(' ');
+            text.append("@ ");
+            appendPosition(text, ((DynamicDataReport) amsg).getLatitude());
+            text.append(", ");
+            appendPosition(text, ((DynamicDataReport) amsg).getLongitude());
+            text.append(NEWLINE);
+        }
+        text.writeTo(out);
+        out.flush();
+    }
+
+    private static void appendPosition(TextBuffer text, Float value) {
+        if (value == null)
+            text.append("null");
+        else
+            text.append(value.floatValue(), POS_PLACES);
     }
 
     private static void errmsg(String msg) {
@@ -186,7 +334,131 @@ public class KMLDecoder {
             System.out.format("%s%s%n", INDENT, line);
     }
 
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            System.err.format("%s: invalid number \"%s\" for %s%n",
+                MYNAME, value, name);
+            System.exit(2);
+            return defaultValue;  /* not reached */
+        }
+    }
+
+    /* buffer a fragment of a multi-fragment message, returning the
+       decoded message once all its fragments are in and it turns out not
+       to be a duplicate */
+    private static AISMessage reassemble(int nfrag, long millis) {
+        char code = DuplicateFilter.channel(line);
+        String chan = channelName(code);
+        if (chan == null) {
+            errmsg("Invalid channel code "
+                + (code == 0 ? "(none)" : String.valueOf(code)));
+            return null;
+        }
+        int fragno = DuplicateFilter.fragmentNumber(line);
+        if (fragno < 0 || fragno > nfrag) {
+            errmsg("Invalid fragment number " + Integer.toString(fragno));
+            clearbuf(chan);
+            return null;
+        }
+        ArrayList<String> thisbuf = msgbuf.get(chan);
+        int expected = thisbuf.size() + 1;
+        if (fragno != expected) {
+            errmsg("Expecting fragment " + Integer.toString(expected)
+                + ", got " + Integer.toString(fragno) + "!");
+            clearbuf(chan);
+            return null;
+        }
+        thisbuf.add(line);
+        long[] thishash = fraghash.get(chan);
+        thishash[0] = DuplicateFilter.hashPayload(line, thishash[0]);
+        if (fragno != nfrag)
+            return null;
+
+        try {
+            /* reassembled messages can be duplicates, too */
+            if (dups != null && thishash[0] != DuplicateFilter.EMPTY
+                    && dups.isDuplicate(thishash[0], millis))
+                return null;
+            NMEAMessage[] frags = new NMEAMessage[nfrag];
+            for (int i = 0; i < nfrag; i++)
+                frags[i] = NMEAMessage.fromString(thisbuf.get(i));
+            return AISMessage.create(frags);
+        } catch (NMEAParseException exc) {
+            errmsg("Unable to parse");
+        } catch (InvalidMessage|InvalidAISMessage exc) {
+            errmsg("Invalid message");
+        } catch (dk.tbsalling.aismessages.nmea.exceptions.UnsupportedMessageType exc) {
+            errmsg("Unsupported message");
+        } catch (dk.tbsalling.aismessages.ais.exceptions.UnsupportedMessageType exc) {
+            errmsg("Unsupported message");
+        } finally {
+            clearbuf(chan);
+        }
+        return null;
+    }
+
+    /* map a raw channel code onto a msgbuf key, or null if invalid */
+    private static String channelName(char code) {
+        switch (code) {
+        case 'A':
+            return "A";
+        case 'B':
+            return "B";
+        default:
+            return null;
+        }
+    }
+
     private static void clearbuf(String chan) {
         msgbuf.get(chan).clear();
+        fraghash.get(chan)[0] = DuplicateFilter.SEED;
+    }
+
+    private static void reportStats(String when) {
+        if (dups != null)
+            System.out.format("%s Duplicates suppressed: %d of %d (%.1f%%)%n",
+                when, dups.getSuppressed(), dups.getSeen(),
+                dups.getRatio() * 100.0);
+        long offered = 0, coalesced = 0, dropped = 0;
+        int maxDepth = 0;
+        for (ConflatingQueue queue: queues) {
+            offered += queue.getOffered();
+            coalesced += queue.getCoalesced();
+            dropped += queue.getDropped();
+            maxDepth = Math.max(maxDepth, queue.getMaxDepth());
+        }
+        System.out.format("%s Queues: %d offered, %d coalesced, %d dropped, max depth %d%n",
+            when, offered, coalesced, dropped, maxDepth);
+        System.out.format("%s Ships: %d tracked (~%d KiB), %d purged, %d evicted%n",
+            when, ships.size(), ships.getBytes() / 1024, ships.getPurged(),
+            ships.getEvicted());
+    }
+
+    /* build a RetentionPolicy, taking any settings from system properties
+       (lifetimes are given in seconds) */
+    private static RetentionPolicy getRetentionPolicy() {
+        RetentionPolicy ret = new RetentionPolicy();
+        ret.setDefaultLife(1000 * Long.getLong("kmldecoder.retain.default",
+            ret.getDefaultLife() / 1000));
+        ret.setClassBLife(1000 * Long.getLong("kmldecoder.retain.classb",
+            ret.getClassBLife() / 1000));
+        ret.setMooredLife(1000 * Long.getLong("kmldecoder.retain.moored",
+            ret.getMooredLife() / 1000));
+        ret.setBaseStationLife(1000 * Long.getLong("kmldecoder.retain.base",
+            ret.getBaseStationLife() / 1000));
+        ret.setFastLife(1000 * Long.getLong("kmldecoder.retain.fast",
+            ret.getFastLife() / 1000));
+        ret.setFastSpeed((float) doubleProperty("kmldecoder.retain.fastspeed",
+            ret.getFastSpeed()));
+        ret.setMaxShips(Integer.getInteger("kmldecoder.retain.maxships",
+            ret.getMaxShips()));
+        ret.setMaxBytes(Long.getLong("kmldecoder.retain.maxbytes",
+            ret.getMaxBytes()));
+        return ret;
     }
 }
@@ -1,5 +1,4 @@
 import java.lang.reflect.*;
-import java.text.DateFormat;
 import java.util.*;
 import javax.xml.stream.*;
 import dk.tbsalling.aismessages.ais.messages.*;
@@ -13,6 +12,11 @@ import dk.tbsalling.aismessages.ais.exceptions.*;
  * Data to track a single ship. Would be a bean were it serializable.
  */
 public class PlottableShip implements Cloneable {
+    /**
+     * A speed over ground this high or higher means "not available".
+     */
+    public static final float SOG_UNAVAILABLE = 102.2f;
+
     /**
      * Zero-argument constructor.
      *
@@ -35,6 +39,7 @@ public class PlottableShip implements Cloneable {
         setCallsign(null);
         setShipName(null);
         setMMSI(mmsi);
+        setMaxLife(0);
         markUpdated();
     }
 
@@ -42,6 +47,7 @@ public class PlottableShip implements Cloneable {
         PlottableShip ret = new PlottableShip(getMMSI());
         ret.doImport(this);
         ret.updated = updated;
+        ret.maxLife = maxLife;
         return ret;
     }
 
@@ -101,12 +107,42 @@ public class PlottableShip implements Cloneable {
         this.MMSI = value;
     }
 
-    private Date updated;
+    private long updated;
     public Date getUpdated() {
+        return new Date(updated);
+    }
+    public long getUpdatedMillis() {
         return updated;
     }
     public void markUpdated() {
-        updated = new Date();
+        updated = System.currentTimeMillis();
+    }
+
+    private long maxLife;
+    public long getMaxLife() {
+        return maxLife;
+    }
+    public void setMaxLife(long value) {
+        this.maxLife = value;
+    }
+
+    /* rough sizes, in bytes, of a ship and of one of its strings */
+    private static final int BASE_SIZE = 256;
+    private static final int STRING_SIZE = 48;
+
+    /**
+     * Estimate how much memory this ship takes up. Only a ballpark figure,
+     * good enough for enforcing memory budgets.
+     *
+     * @return Estimated size in bytes.
+     */
+    public int estimateSize() {
+        return BASE_SIZE + stringSize(MMSI) + stringSize(callsign)
+            + stringSize(shipName);
+    }
+
+    private int stringSize(String value) {
+        return value == null ? 0 : STRING_SIZE + 2 * value.length();
     }
 
     private static final String[] NORMAL_FIELDS = {
@@ -157,24 +193,31 @@ public class PlottableShip implements Cloneable {
     	markUpdated();
     }
 
-    private String unk(Object value) {
-        return unk(value, "");
+    private static final String UNKNOWN = "(unknown)";
+
+    private void unk(TextBuffer text, String value) {
+        text.append(value == null ? UNKNOWN : value);
     }
 
-    private String unk(Object value, String suffix) {
+    private void unk(TextBuffer text, Float value, int places, String suffix) {
         if (value == null)
-            return "(unknown)";
+            text.append(UNKNOWN);
         else
-            return value + suffix;
+            text.append(value.floatValue(), places).append(suffix);
     }
 
+    /* decimal places for positions, and for speeds and courses */
+    private static final int POS_PLACES = 6;
+    private static final int SOG_PLACES = 1;
+
     /**
      * Write out a KML fragment representing this ship.
      *
      * @param writer An XMLStreamWriter.
-     * @param df A DateFormat object used to format date/time values.
+     * @param text A TextBuffer used to format numbers and times; it is
+     *     reused so that plotting many ships makes little garbage.
      */
-    public void plot(XMLStreamWriter writer, DateFormat df) throws XMLStreamException {
+    public void plot(XMLStreamWriter writer, TextBuffer text) throws XMLStreamException {
         /* It is impossible to plot an unknown location */
         if (latitude == null || longitude == null)
             return;
@@ -184,26 +227,33 @@ public class PlottableShip implements Cloneable {
 
         /* Name or failing that MMSI */
         writer.writeStartElement("name");
-        writer.writeCharacters(shipName == null ? unk(MMSI) : shipName);
+        writer.writeCharacters(shipName == null ? (MMSI == null ? UNKNOWN : MMSI) : shipName);
         writer.writeEndElement();
 
         /* Position to place the mark on a map */
         writer.writeStartElement("Point");
         writer.writeStartElement("coordinates");
-        writer.writeCharacters(longitude + "," + latitude + ",0");
+        text.clear().append(longitude.floatValue(), POS_PLACES).append(',')
+            .append(latitude.floatValue(), POS_PLACES).append(",0").writeTo(writer);
         writer.writeEndElement();
         writer.writeEndElement();
 
         /* All info other than name */
         writer.writeStartElement("description");
-        writer.writeCharacters("Name: " + unk(shipName) + "<br>");
-        writer.writeCharacters("MMSI: " + unk(MMSI) + "<br>");
-        writer.writeCharacters("Callsign: " + unk(callsign) + "<br>");
-        writer.writeCharacters("Latitide: " + latitude + "<br>");
-        writer.writeCharacters("Longitude: " + longitude + "<br>");
-        writer.writeCharacters("Speed: "+unk(speedOverGround," kn")+"<br>");
-        writer.writeCharacters("Heading: "+unk(courseOverGround,"˚")+"<br>");
-        writer.writeCharacters("Updated: "+df.format(updated)+"<br>");
+        text.clear().append("Name: ");
+        unk(text, shipName);
+        text.append("<br>MMSI: ");
+        unk(text, MMSI);
+        text.append("<br>Callsign: ");
+        unk(text, callsign);
+        text.append("<br>Latitide: ").append(latitude.floatValue(), POS_PLACES);
+        text.append("<br>Longitude: ").append(longitude.floatValue(), POS_PLACES);
+        text.append("<br>Speed: ");
+        unk(text, speedOverGround, SOG_PLACES, " kn");
+        text.append("<br>Heading: ");
+        unk(text, courseOverGround, SOG_PLACES, "˚");
+        text.append("<br>Updated: ").appendTime(updated).append("<br>");
+        text.writeTo(writer);
         writer.writeEndElement();
 
         /* End the XML block */
@@ -217,6 +267,28 @@ public class PlottableShip implements Cloneable {
      * @return A nine-digit string, with leading zeroes if needed.
      */
     public static String formatMMSI(Long value) {
-        return (new Formatter()).format("%09d", value).toString();
+        return formatMMSI(value.longValue());
+    }
+
+    private static final int MMSI_DIGITS = 9;
+
+    /**
+     * Format a long MMSI as a string, without the overhead of a Formatter.
+     *
+     * @param value A long value.
+     * @return A nine-digit string, with leading zeroes if needed.
+     */
+    public static String formatMMSI(long value) {
+        if (value < 0)
+            return String.format("%09d", value);
+        int ndigits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            ndigits++;
+        char[] buf = new char[Math.max(ndigits, MMSI_DIGITS)];
+        for (int pos = buf.length - 1; pos >= 0; pos--) {
+            buf[pos] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(buf);
     }
 }
\ No newline at end of file
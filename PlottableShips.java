@@ -1,72 +1,230 @@
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import dk.tbsalling.aismessages.ais.messages.*;
 
 /**
  * @author David Barts
- * @version 0.1
+ * @version 0.2
  * @since 2016-01-20
  *
  * Track multiple plottable ships. Thread-safe, and manages the purging
  * of stale ship data.
  *
- * The synchronization is crude (we could easily do better and allow
- * concurrent reads) because the number of threads in our service is very
- * limited (typically only one reader).
+ * How long ships are kept after they stop reporting, and how many are
+ * kept at most, is governed by a RetentionPolicy. The limits apply to all
+ * ships together, counted without locking any shard. When they are
+ * exceeded, the ship least recently updated in whichever shard has the
+ * oldest such ship is evicted, until they no longer are. That is done
+ * with only one shard locked at a time, so other threads may update
+ * ships meanwhile; the count can briefly overshoot by a ship or so per
+ * updater thread, and a ship evicted is not always the very oldest.
+ *
+ * Ships are split into a number of shards by MMSI, each with its own
+ * lock, so that updates to different ships need not wait on each other
+ * and readers only ever hold up one shard at a time.
+ *
+ * If given an AlertUpdater, it is told about every ship that moves or
+ * gets purged. That only records the ship's latest position, as plain
+ * numbers, for the AlertUpdater's own thread to act on, so the (single)
+ * ProximityAlerts lock never holds up updates.
  */
 public class PlottableShips {
-    /* purge a ship after no reports for this many milliseconds */
-    private static final long MAXLIFE = 10 * 60 * 1000;
-
     /* don't run purges more often than this */
     private static final long MINPURGE = 30 * 1000;
 
-    private long lastPurged;
-    private HashMap<String, PlottableShip> shipMap;
+    private Shard[] shards;
+    private AlertUpdater alerts;
+    private long maxShips, maxBytes;
+    /* totals over all shards */
+    private AtomicInteger count;
+    private AtomicLong bytes;
+
+    /**
+     * Something that wants to look at every current ship.
+     */
+    public interface Visitor {
+        /**
+         * Look at a ship. Called with the ship's shard locked, so this
+         * must not retain the ship without copying it, and should be
+         * quick about it.
+         *
+         * @param ship The ship.
+         */
+        void visit(PlottableShip ship);
+    }
 
     /**
-     * Zero-argument constructor.
+     * Zero-argument constructor. Uses one shard per available processor.
      *
      * @return Constructed object.
      */
     public PlottableShips() {
-        lastPurged = (new Date()).getTime();
-        shipMap = new HashMap<String, PlottableShip>();
+        this(Runtime.getRuntime().availableProcessors());
     }
 
     /**
-     * Purge old ships.
+     * One-argument constructor.
+     *
+     * @param nshards Number of shards to split ships into.
+     * @return Constructed object.
      */
-    public synchronized void purgeOld() {
-        /* don't do anything if we recently purged */
-        long now = (new Date()).getTime();
-        if (now - lastPurged < MINPURGE)
-            return;
-        lastPurged = now;
+    public PlottableShips(int nshards) {
+        this(nshards, null);
+    }
 
-        /* first we build the list of things to zap */
-        ArrayList<String> toPurge = new ArrayList<String>();
-        for (Map.Entry<String, PlottableShip> entry: shipMap.entrySet()) {
-            long then = entry.getValue().getUpdated().getTime();
-            if (now - then > MAXLIFE)
-                toPurge.add(entry.getKey());
-        }
+    /**
+     * Two-argument constructor.
+     *
+     * @param nshards Number of shards to split ships into.
+     * @param alerts AlertUpdater to tell about movements, or null.
+     * @return Constructed object.
+     */
+    public PlottableShips(int nshards, AlertUpdater alerts) {
+        this(nshards, alerts, new RetentionPolicy());
+    }
+
+    /**
+     * Three-argument constructor.
+     *
+     * @param nshards Number of shards to split ships into.
+     * @param alerts AlertUpdater to tell about movements, or null.
+     * @param policy RetentionPolicy governing purging and eviction.
+     * @return Constructed object.
+     */
+    public PlottableShips(int nshards, AlertUpdater alerts,
+            RetentionPolicy policy) {
+        if (nshards < 1)
+            throw new IllegalArgumentException("need at least one shard");
+        this.alerts = alerts;
+        maxShips = policy.getMaxShips();
+        maxBytes = policy.getMaxBytes();
+        count = new AtomicInteger(0);
+        bytes = new AtomicLong(0);
+        long now = System.currentTimeMillis();
+        shards = new Shard[nshards];
+        /* stagger the purge schedules so shards don't all purge at once */
+        for (int i = 0; i < nshards; i++)
+            shards[i] = new Shard(now - i * MINPURGE / nshards, alerts,
+                policy, count, bytes);
+    }
+
+    /**
+     * Get the ProximityAlerts object being kept up to date.
+     *
+     * @return ProximityAlerts object, or null if none.
+     */
+    public ProximityAlerts getProximityAlerts() {
+        return alerts == null ? null : alerts.getProximityAlerts();
+    }
+
+    /**
+     * Map an MMSI onto one of n stripes. Used to pick shards, and by
+     * anything else that wants to split work up by ship the same way.
+     *
+     * @param mmsi An MMSI.
+     * @param n Number of stripes.
+     * @return Stripe number, from 0 to n - 1.
+     */
+    public static int stripe(String mmsi, int n) {
+        int h = mmsi.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % n;
+    }
 
-        /* then we zap them */
-        for (String mmsi: toPurge)
-            shipMap.remove(mmsi);
+    private Shard shardFor(String mmsi) {
+        return shards[stripe(mmsi, shards.length)];
+    }
+
+    /**
+     * Purge old ships from every shard. Locks each shard in turn, so is
+     * not something to do for every message; addOrUpdate already purges
+     * the shard it updates, and visit and getCurrent the ones they read.
+     */
+    public void purgeOld() {
+        long now = System.currentTimeMillis();
+        for (Shard shard: shards)
+            shard.purgeOld(now);
     }
 
     /**
      * Get current ships as a collection. The returned collection
-     * is non-volatile.
+     * is non-volatile. Each shard is locked only while it is being
+     * copied, so this is not an atomic snapshot of all ships.
      *
      * @return A Collection<PlottableShip>.
      */
-    public synchronized Collection<PlottableShip> getCurrent() {
-        purgeOld();
+    public Collection<PlottableShip> getCurrent() {
+        long now = System.currentTimeMillis();
         ArrayList<PlottableShip> ret = new ArrayList<PlottableShip>();
-        for (PlottableShip ship: shipMap.values())
-            ret.add(ship.clone());
+        for (Shard shard: shards)
+            shard.copyTo(ret, now);
+        return ret;
+    }
+
+    /**
+     * Show every current ship to a Visitor. Like getCurrent, this locks
+     * only one shard at a time, but avoids copying every ship.
+     *
+     * @param visitor The Visitor.
+     */
+    public void visit(Visitor visitor) {
+        long now = System.currentTimeMillis();
+        for (Shard shard: shards)
+            shard.visit(visitor, now);
+    }
+
+    /**
+     * Get a version number, which changes every time any ship is added,
+     * updated, or purged.
+     *
+     * @return A long value.
+     */
+    public long getVersion() {
+        long ret = 0;
+        for (Shard shard: shards)
+            ret += shard.getVersion();
+        return ret;
+    }
+
+    /**
+     * Get number of ships currently being tracked.
+     *
+     * @return An int value.
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Get estimated memory used by ships currently being tracked.
+     *
+     * @return Estimated size in bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get number of ships purged for not having reported recently.
+     *
+     * @return A long value.
+     */
+    public long getPurged() {
+        long ret = 0;
+        for (Shard shard: shards)
+            ret += shard.getPurged();
+        return ret;
+    }
+
+    /**
+     * Get number of ships evicted to keep within limits.
+     *
+     * @return A long value.
+     */
+    public long getEvicted() {
+        long ret = 0;
+        for (Shard shard: shards)
+            ret += shard.getEvicted();
         return ret;
     }
 
@@ -77,22 +235,12 @@ public class PlottableShips {
      * @param message Any received AISMessage.
      * @return true if the ship was added
      */
-    public synchronized boolean addOrUpdate(String mmsi, AISMessage message) {
-        boolean ret = false;
-        PlottableShip ship;
-        if ((ship = shipMap.get(mmsi)) == null) {
-            ship = new PlottableShip(mmsi);
-            shipMap.put(mmsi, ship);
-            ret = true;
-        }
-        ship.importFields(message);
+    public boolean addOrUpdate(String mmsi, AISMessage message) {
+        boolean ret = shardFor(mmsi).addOrUpdate(mmsi, message);
+        evict(mmsi);
         return ret;
     }
 
-    private boolean shouldRemember(String _old, String _new) {
-        return _new != null && _old == null;
-    }
-
     /**
      * If the MMSI is associated with a ship that does not have a name or
      * callsign in our database, set them from the passed arguments.
@@ -101,11 +249,198 @@ public class PlottableShips {
      * @param name Name of the ship (if null, do not update)
      * @param call Callsign of the ship (if null, do not update)
      */
-    public synchronized void rememberNameCall(String mmsi, String name, String call) {
-        PlottableShip ship = shipMap.get(mmsi);
-        if (shouldRemember(ship.getShipName(), name))
-            ship.setShipName(name);
-        if (shouldRemember(ship.getCallsign(), call))
-            ship.setCallsign(call);
+    public void rememberNameCall(String mmsi, String name, String call) {
+        shardFor(mmsi).rememberNameCall(mmsi, name, call);
+        evict(mmsi);
+    }
+
+    private boolean overLimits() {
+        return (maxShips > 0 && count.get() > maxShips)
+            || (maxBytes > 0 && bytes.get() > maxBytes);
+    }
+
+    /* evict the oldest ships (other than keep) while over our limits */
+    private void evict(String keep) {
+        while (overLimits()) {
+            Shard victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (Shard shard: shards) {
+                long updated = shard.getOldest(keep);
+                if (updated < oldest) {
+                    oldest = updated;
+                    victim = shard;
+                }
+            }
+            if (victim == null || !victim.evictOldest(keep))
+                break;
+        }
+    }
+
+    /* one independently-locked portion of the ships */
+    private static class Shard {
+        private long lastPurged;
+        private long version;
+        /* in access order, so the least recently updated comes first */
+        private LinkedHashMap<String, PlottableShip> shipMap;
+        private AlertUpdater alerts;
+        private RetentionPolicy policy;
+        private AtomicInteger count;
+        private AtomicLong bytes;
+        private long purged, evicted;
+
+        public Shard(long lastPurged, AlertUpdater alerts,
+                RetentionPolicy policy, AtomicInteger count, AtomicLong bytes) {
+            this.lastPurged = lastPurged;
+            this.alerts = alerts;
+            this.policy = policy;
+            this.count = count;
+            this.bytes = bytes;
+            version = 0;
+            purged = evicted = 0;
+            shipMap = new LinkedHashMap<String, PlottableShip>(16, 0.75f, true);
+        }
+
+        private void forget(PlottableShip ship) {
+            version++;
+            count.decrementAndGet();
+            bytes.addAndGet(-ship.estimateSize());
+            if (alerts != null)
+                alerts.removed(ship.getMMSI());
+        }
+
+        /* the least recently updated ship, unless it is the one with the
+           given MMSI (which, having just been updated, can only be first
+           if it is alone) */
+        private PlottableShip oldest(String keep) {
+            Iterator<PlottableShip> it = shipMap.values().iterator();
+            if (!it.hasNext())
+                return null;
+            PlottableShip ship = it.next();
+            return ship.getMMSI().equals(keep) ? null : ship;
+        }
+
+        /* when our least recently updated ship (other than keep) was
+           updated, or Long.MAX_VALUE if there is none */
+        public synchronized long getOldest(String keep) {
+            PlottableShip ship = oldest(keep);
+            return ship == null ? Long.MAX_VALUE : ship.getUpdatedMillis();
+        }
+
+        /* evict our least recently updated ship (other than keep),
+           returning whether there was one */
+        public synchronized boolean evictOldest(String keep) {
+            PlottableShip ship = oldest(keep);
+            if (ship == null)
+                return false;
+            shipMap.remove(ship.getMMSI());
+            forget(ship);
+            evicted++;
+            return true;
+        }
+
+        public synchronized void purgeOld(long now) {
+            /* don't do anything if we recently purged */
+            if (now - lastPurged < MINPURGE)
+                return;
+            lastPurged = now;
+
+            /* zap anything stale */
+            Iterator<PlottableShip> it = shipMap.values().iterator();
+            while (it.hasNext()) {
+                PlottableShip ship = it.next();
+                if (now - ship.getUpdatedMillis() > ship.getMaxLife()) {
+                    it.remove();
+                    forget(ship);
+                    purged++;
+                }
+            }
+        }
+
+        public synchronized void copyTo(Collection<PlottableShip> dest, long now) {
+            purgeOld(now);
+            for (PlottableShip ship: shipMap.values())
+                dest.add(ship.clone());
+        }
+
+        public synchronized void visit(Visitor visitor, long now) {
+            purgeOld(now);
+            for (PlottableShip ship: shipMap.values())
+                visitor.visit(ship);
+        }
+
+        public synchronized long getVersion() {
+            return version;
+        }
+
+        public synchronized long getPurged() {
+            return purged;
+        }
+
+        public synchronized long getEvicted() {
+            return evicted;
+        }
+
+        public synchronized boolean addOrUpdate(String mmsi, AISMessage message) {
+            boolean ret = false;
+            long size = 0;
+            PlottableShip ship;
+            if ((ship = shipMap.get(mmsi)) == null) {
+                ship = new PlottableShip(mmsi);
+                ship.setMaxLife(policy.getDefaultLife());
+                shipMap.put(mmsi, ship);
+                count.incrementAndGet();
+                ret = true;
+            } else {
+                size = ship.estimateSize();
+            }
+            long life = policy.lifetimeFor(message);
+            if (life >= 0)
+                ship.setMaxLife(life);
+            Float lat = ship.getLatitude(), lon = ship.getLongitude();
+            Float sog = ship.getSpeedOverGround(), cog = ship.getCourseOverGround();
+            ship.importFields(message);
+            bytes.addAndGet(ship.estimateSize() - size);
+            version++;
+            if (alerts != null && (changed(lat, ship.getLatitude())
+                    || changed(lon, ship.getLongitude())
+                    || changed(sog, ship.getSpeedOverGround())
+                    || changed(cog, ship.getCourseOverGround())))
+                alerts.moved(mmsi, floatOrNaN(ship.getLatitude()),
+                    floatOrNaN(ship.getLongitude()),
+                    floatOrNaN(ship.getSpeedOverGround()),
+                    floatOrNaN(ship.getCourseOverGround()),
+                    ship.getUpdatedMillis());
+            /* we hold the lock anyway, so this is the time to purge */
+            purgeOld(ship.getUpdatedMillis());
+            return ret;
+        }
+
+        private float floatOrNaN(Float value) {
+            return value == null ? Float.NaN : value.floatValue();
+        }
+
+        private boolean changed(Object _old, Object _new) {
+            return _old == null ? _new != null : !_old.equals(_new);
+        }
+
+        private boolean shouldRemember(String _old, String _new) {
+            return _new != null && _old == null;
+        }
+
+        public synchronized void rememberNameCall(String mmsi, String name, String call) {
+            PlottableShip ship = shipMap.get(mmsi);
+            if (ship == null)
+                return;  /* purged out from under us */
+            long size = ship.estimateSize();
+            if (shouldRemember(ship.getShipName(), name)) {
+                ship.setShipName(name);
+                version++;
+            }
+            if (shouldRemember(ship.getCallsign(), call)) {
+                ship.setCallsign(call);
+                version++;
+            }
+            bytes.addAndGet(ship.estimateSize() - size);
+        }
     }
 }
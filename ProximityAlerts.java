@@ -0,0 +1,494 @@
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-10
+ *
+ * Keeps a live set of pairs of ships at risk of collision, based on their
+ * closest point of approach (CPA) and time to it (TCPA), as extrapolated
+ * from their reported positions, speeds and courses.
+ *
+ * Checking every pair of ships would be quadratic, so ships are kept in a
+ * grid whose cells are about as big as the look-ahead radius. When a ship
+ * moves, only ships in its own and neighbouring cells get checked against
+ * it, and only its own pairs get revised. Thread-safe.
+ *
+ * Ships are filed by their last reported position, but compared at a
+ * common time, by which they may have moved on. So the search is widened
+ * by how far the fastest ship seen (up to MAX_SPEED) could have gone in
+ * STALE_LIMIT, and pairs whose reports are further apart in time than
+ * that are not compared at all. Ships faster than MAX_SPEED may thus
+ * occasionally be missed.
+ *
+ * Distances are in nautical miles and worked out on a local flat-earth
+ * approximation, which is plenty good at the ranges involved.
+ */
+public class ProximityAlerts {
+    /* nautical miles per degree of latitude */
+    private static final double NM_PER_DEG = 60.0;
+
+    private static final long MS_PER_HOUR = 60 * 60 * 1000;
+
+    /* don't compare ships whose reports are further apart than this */
+    private static final long STALE_LIMIT = 5 * 60 * 1000;
+
+    /* don't widen the search for ships faster than this (knots) */
+    private static final double MAX_SPEED = 50.0;
+
+    /* decimal places for positions, CPAs and TCPAs when plotting */
+    private static final int POS_PLACES = 6;
+    private static final int CPA_PLACES = 2;
+    private static final int TCPA_PLACES = 1;
+
+    private double radius;
+    private double maxCpa;
+    private double maxTcpa;
+    private double cellSize;
+    private double maxSpeed;
+    private long generation;
+    private long ncols;
+    private HashMap<String, Track> tracks;
+    private HashMap<Long, HashSet<Track>> grid;
+    private HashMap<String, Alert> alerts;
+
+    /**
+     * Constructor.
+     *
+     * @param radius Look-ahead radius; ships farther apart than this are
+     *     never checked against each other (nautical miles).
+     * @param maxCpa Pairs with a CPA closer than this are risky (nautical
+     *     miles).
+     * @param maxTcpa ...provided their CPA is no further away than this
+     *     (minutes).
+     * @return Constructed object.
+     */
+    public ProximityAlerts(double radius, double maxCpa, double maxTcpa) {
+        if (!(radius > 0.0))
+            throw new IllegalArgumentException("radius must be positive");
+        this.radius = radius;
+        this.maxCpa = maxCpa;
+        this.maxTcpa = maxTcpa / 60.0;
+        cellSize = radius / NM_PER_DEG;
+        maxSpeed = 0.0;
+        generation = 0;
+        ncols = (long) Math.ceil(360.0 / cellSize);
+        tracks = new HashMap<String, Track>();
+        grid = new HashMap<Long, HashSet<Track>>();
+        alerts = new HashMap<String, Alert>();
+    }
+
+    /**
+     * Note a ship's new position and motion, and revise the alerts for
+     * pairs it is a member of. Ships with unknown position or motion are
+     * forgotten about until they report one.
+     *
+     * @param ship Ship that has moved.
+     */
+    public void update(PlottableShip ship) {
+        update(ship.getMMSI(), unbox(ship.getLatitude()),
+            unbox(ship.getLongitude()), unbox(ship.getSpeedOverGround()),
+            unbox(ship.getCourseOverGround()), ship.getUpdatedMillis());
+    }
+
+    private static float unbox(Float value) {
+        return value == null ? Float.NaN : value.floatValue();
+    }
+
+    /**
+     * Note a ship's new position and motion, and revise the alerts for
+     * pairs it is a member of. Unknown values are passed as NaN; ships
+     * with unknown position or motion are forgotten about until they
+     * report one.
+     *
+     * @param mmsi MMSI of the ship.
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @param sog Speed over ground in knots.
+     * @param cog Course over ground in degrees.
+     * @param time When the ship reported this, in milliseconds since the
+     *     epoch.
+     */
+    public synchronized void update(String mmsi, float lat, float lon,
+            float sog, float cog, long time) {
+        boolean stopped = sog == 0.0f;
+        /* comparisons with NaN are false, so unknowns fail these */
+        if (!(lat >= -90.0f && lat <= 90.0f && lon >= -180.0f && lon <= 180.0f)
+                || !(sog >= 0.0f && sog < PlottableShip.SOG_UNAVAILABLE)
+                || (!stopped && !(cog >= 0.0f && cog < 360.0f))) {
+            remove(mmsi);
+            return;
+        }
+
+        /* (re)file the ship in the grid */
+        Track track = tracks.get(mmsi);
+        if (track == null) {
+            track = new Track(mmsi);
+            tracks.put(mmsi, track);
+        } else {
+            unfile(track);
+        }
+        track.set(lat, lon, sog, stopped ? 0.0f : cog, time);
+        file(track);
+        maxSpeed = Math.max(maxSpeed, Math.min(sog, MAX_SPEED));
+
+        /* check it against everything nearby, allowing for how far ships
+           may have moved since they were filed; ships found to be risky
+           get marked with this pass's generation number */
+        long gen = ++generation;
+        long rings = (long) Math.ceil(
+            (radius + maxSpeed * STALE_LIMIT / MS_PER_HOUR) / radius);
+        long row = row(track.lat);
+        long span = lonSpan(track.lat, rings);
+        for (long r = row - rings; r <= row + rings; r++) {
+            for (long c = track.col - span; c <= track.col + span; c++) {
+                HashSet<Track> cell = grid.get(key(r, c));
+                if (cell == null)
+                    continue;
+                for (Track other: cell) {
+                    if (other == track
+                            || Math.abs(track.time - other.time) > STALE_LIMIT)
+                        continue;
+                    Alert alert = assess(track, other);
+                    if (alert == null)
+                        continue;
+                    alerts.put(alert.getKey(), alert);
+                    other.mark = gen;
+                    track.partners.add(other.mmsi);
+                    other.partners.add(mmsi);
+                }
+            }
+        }
+
+        /* pairs involving this ship that are no longer risky get dropped */
+        Iterator<String> it = track.partners.iterator();
+        while (it.hasNext()) {
+            String other = it.next();
+            Track otrack = tracks.get(other);
+            if (otrack != null && otrack.mark == gen)
+                continue;
+            it.remove();
+            alerts.remove(pairKey(mmsi, other));
+            if (otrack != null)
+                otrack.partners.remove(mmsi);
+        }
+    }
+
+    /**
+     * Forget about a ship (e.g. because it has been purged).
+     *
+     * @param mmsi MMSI of the ship.
+     */
+    public synchronized void remove(String mmsi) {
+        Track track = tracks.remove(mmsi);
+        if (track == null)
+            return;
+        unfile(track);
+        for (String other: track.partners) {
+            alerts.remove(pairKey(mmsi, other));
+            Track otrack = tracks.get(other);
+            if (otrack != null)
+                otrack.partners.remove(mmsi);
+        }
+    }
+
+    /**
+     * Get current alerts, sorted by increasing time to CPA. Alerts whose
+     * CPA is already in the past are dropped.
+     *
+     * @param now Current time in milliseconds since the epoch.
+     * @return A List<Alert>.
+     */
+    public synchronized List<Alert> getAlerts(long now) {
+        ArrayList<Alert> ret = new ArrayList<Alert>();
+        Iterator<Alert> it = alerts.values().iterator();
+        while (it.hasNext()) {
+            Alert alert = it.next();
+            if (alert.getCpaTime() < now) {
+                it.remove();
+                Track a = tracks.get(alert.getMMSI1());
+                Track b = tracks.get(alert.getMMSI2());
+                if (a != null) a.partners.remove(alert.getMMSI2());
+                if (b != null) b.partners.remove(alert.getMMSI1());
+            } else {
+                ret.add(alert);
+            }
+        }
+        Collections.sort(ret, new Comparator<Alert>() {
+            public int compare(Alert x, Alert y) {
+                return Long.compare(x.getCpaTime(), y.getCpaTime());
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Write out a KML fragment with a line joining each pair of ships
+     * at risk.
+     *
+     * @param writer An XMLStreamWriter.
+     * @param text A TextBuffer used to format numbers.
+     * @param now Current time in milliseconds since the epoch.
+     */
+    public void plot(XMLStreamWriter writer, TextBuffer text, long now)
+            throws XMLStreamException {
+        plot(writer, text, now, null, 0);
+    }
+
+    /**
+     * Write out a KML fragment with a line joining each pair of ships at
+     * risk, limited to those within an area being viewed, soonest first.
+     *
+     * @param writer An XMLStreamWriter.
+     * @param text A TextBuffer used to format numbers.
+     * @param now Current time in milliseconds since the epoch.
+     * @param within Only plot pairs with a ship in this ShipClusters
+     *     object's bounding box; null for anywhere.
+     * @param max Most pairs to plot; 0 for no limit.
+     */
+    public void plot(XMLStreamWriter writer, TextBuffer text, long now,
+            ShipClusters within, int max) throws XMLStreamException {
+        int plotted = 0;
+        for (Alert alert: getAlerts(now)) {
+            if (within != null && !within.contains(alert.getLatitude1(), alert.getLongitude1())
+                    && !within.contains(alert.getLatitude2(), alert.getLongitude2()))
+                continue;
+            if (max > 0 && plotted++ >= max)
+                break;
+            writer.writeStartElement("Placemark");
+
+            writer.writeStartElement("name");
+            text.clear().append("CPA ").append(alert.getMMSI1()).append('/')
+                .append(alert.getMMSI2()).writeTo(writer);
+            writer.writeEndElement();
+
+            writer.writeStartElement("description");
+            text.clear().append("CPA: ").append(alert.getCpa(), CPA_PLACES)
+                .append(" nm<br>TCPA: ")
+                .append((alert.getCpaTime() - now) / 60000.0, TCPA_PLACES)
+                .append(" min<br>").writeTo(writer);
+            writer.writeEndElement();
+
+            writer.writeStartElement("LineString");
+            writer.writeStartElement("coordinates");
+            text.clear().append(alert.getLongitude1(), POS_PLACES).append(',')
+                .append(alert.getLatitude1(), POS_PLACES).append(",0 ")
+                .append(alert.getLongitude2(), POS_PLACES).append(',')
+                .append(alert.getLatitude2(), POS_PLACES).append(",0")
+                .writeTo(writer);
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+        }
+    }
+
+    /**
+     * Write out current alerts as a JSON array.
+     *
+     * @param writer A Writer.
+     * @param now Current time in milliseconds since the epoch.
+     */
+    public void writeJSON(Writer writer, long now) throws IOException {
+        writer.write("[");
+        boolean first = true;
+        for (Alert alert: getAlerts(now)) {
+            if (!first)
+                writer.write(",");
+            first = false;
+            writer.write(String.format(Locale.ROOT,
+                "%n{\"mmsi1\":\"%s\",\"mmsi2\":\"%s\",\"cpa\":%.3f,\"tcpa\":%.2f,"
+                + "\"lat1\":%f,\"lon1\":%f,\"lat2\":%f,\"lon2\":%f}",
+                alert.getMMSI1(), alert.getMMSI2(), alert.getCpa(),
+                (alert.getCpaTime() - now) / 60000.0,
+                alert.getLatitude1(), alert.getLongitude1(),
+                alert.getLatitude2(), alert.getLongitude2()));
+        }
+        writer.write(String.format("%n]%n"));
+    }
+
+    /* work out CPA and TCPA for a pair, returning an Alert if risky */
+    private Alert assess(Track a, Track b) {
+        /* bring both to a common time (the later of the two) */
+        long when = Math.max(a.time, b.time);
+        double alat = a.latAt(when), alon = a.lonAt(when);
+        double blat = b.latAt(when), blon = b.lonAt(when);
+
+        double coslat = Math.cos(Math.toRadians((alat + blat) / 2.0));
+        double dlon = blon - alon;
+        if (dlon > 180.0) dlon -= 360.0;
+        if (dlon < -180.0) dlon += 360.0;
+        double dx = dlon * NM_PER_DEG * coslat;
+        double dy = (blat - alat) * NM_PER_DEG;
+        if (dx * dx + dy * dy > radius * radius)
+            return null;
+
+        double dvx = b.vx - a.vx;
+        double dvy = b.vy - a.vy;
+        double dv2 = dvx * dvx + dvy * dvy;
+        if (dv2 < 1e-9)
+            return null;  /* not moving relative to each other */
+        double tcpa = -(dx * dvx + dy * dvy) / dv2;
+        if (tcpa < 0.0 || tcpa > maxTcpa)
+            return null;
+        double cx = dx + dvx * tcpa;
+        double cy = dy + dvy * tcpa;
+        double cpa = Math.sqrt(cx * cx + cy * cy);
+        if (cpa > maxCpa)
+            return null;
+
+        return new Alert(a.mmsi, alat, alon, b.mmsi, blat, blon, cpa,
+            when + (long) (tcpa * MS_PER_HOUR));
+    }
+
+    private long row(double lat) {
+        return (long) Math.floor((lat + 90.0) / cellSize);
+    }
+
+    private long col(double lon) {
+        return (long) Math.floor((lon + 180.0) / cellSize);
+    }
+
+    /* number of columns either side to look at to cover as many rows'
+       worth of distance, allowing for convergence of meridians */
+    private long lonSpan(double lat, long rings) {
+        double coslat = Math.cos(Math.toRadians(
+            Math.min(Math.abs(lat) + rings * cellSize, 90.0)));
+        if (coslat < (double) rings / ncols)
+            return ncols / 2;
+        return Math.min((long) Math.ceil(rings / coslat), ncols / 2);
+    }
+
+    private Long key(long row, long col) {
+        col %= ncols;
+        if (col < 0)
+            col += ncols;
+        return row * ncols + col;
+    }
+
+    private void file(Track track) {
+        track.col = col(track.lon);
+        track.cell = key(row(track.lat), track.col);
+        HashSet<Track> cell = grid.get(track.cell);
+        if (cell == null) {
+            cell = new HashSet<Track>();
+            grid.put(track.cell, cell);
+        }
+        cell.add(track);
+    }
+
+    private void unfile(Track track) {
+        HashSet<Track> cell = grid.get(track.cell);
+        if (cell == null)
+            return;
+        cell.remove(track);
+        if (cell.isEmpty())
+            grid.remove(track.cell);
+    }
+
+    private static String pairKey(String a, String b) {
+        return a.compareTo(b) < 0 ? a + " " + b : b + " " + a;
+    }
+
+    /* what we know about one ship's motion */
+    private static class Track {
+        public final String mmsi;
+        public double lat, lon, vx, vy;
+        public long time;
+        public long mark;
+        public long col;
+        public Long cell;
+        public HashSet<String> partners;
+
+        public Track(String mmsi) {
+            this.mmsi = mmsi;
+            partners = new HashSet<String>();
+        }
+
+        public void set(double lat, double lon, double sog, double cog, long time) {
+            this.lat = lat;
+            this.lon = lon;
+            double rcog = Math.toRadians(cog);
+            vx = sog * Math.sin(rcog);
+            vy = sog * Math.cos(rcog);
+            this.time = time;
+        }
+
+        public double latAt(long when) {
+            return lat + vy * (when - time) / MS_PER_HOUR / NM_PER_DEG;
+        }
+
+        public double lonAt(long when) {
+            double coslat = Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+            return lon + vx * (when - time) / MS_PER_HOUR / NM_PER_DEG / coslat;
+        }
+    }
+
+    /**
+     * A pair of ships at risk of collision.
+     */
+    public static class Alert {
+        private String mmsi1, mmsi2;
+        /* positions are only ever as precise as the floats they came from */
+        private float lat1, lon1, lat2, lon2;
+        private double cpa;
+        private long cpaTime;
+
+        private Alert(String mmsi1, double lat1, double lon1,
+                String mmsi2, double lat2, double lon2, double cpa, long cpaTime) {
+            /* keep pairs in a canonical order */
+            if (mmsi1.compareTo(mmsi2) > 0) {
+                this.mmsi1 = mmsi2; this.lat1 = (float) lat2; this.lon1 = (float) lon2;
+                this.mmsi2 = mmsi1; this.lat2 = (float) lat1; this.lon2 = (float) lon1;
+            } else {
+                this.mmsi1 = mmsi1; this.lat1 = (float) lat1; this.lon1 = (float) lon1;
+                this.mmsi2 = mmsi2; this.lat2 = (float) lat2; this.lon2 = (float) lon2;
+            }
+            this.cpa = cpa;
+            this.cpaTime = cpaTime;
+        }
+
+        private String getKey() {
+            return mmsi1 + " " + mmsi2;
+        }
+
+        public String getMMSI1() {
+            return mmsi1;
+        }
+        public float getLatitude1() {
+            return lat1;
+        }
+        public float getLongitude1() {
+            return lon1;
+        }
+        public String getMMSI2() {
+            return mmsi2;
+        }
+        public float getLatitude2() {
+            return lat2;
+        }
+        public float getLongitude2() {
+            return lon2;
+        }
+
+        /**
+         * Get distance at closest point of approach.
+         *
+         * @return Distance in nautical miles.
+         */
+        public double getCpa() {
+            return cpa;
+        }
+
+        /**
+         * Get time of closest point of approach.
+         *
+         * @return Milliseconds since the epoch.
+         */
+        public long getCpaTime() {
+            return cpaTime;
+        }
+    }
+}
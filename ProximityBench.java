@@ -0,0 +1,111 @@
+import java.util.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-18
+ *
+ * Measures the cost of keeping ProximityAlerts up to date with a large
+ * fleet. Ships are scattered at random over a square area, then moved one
+ * at a time along their courses, and the time per update is reported.
+ * For comparison, the time for one naive all-pairs check of the same
+ * fleet (which is what every update would cost without the grid) is
+ * extrapolated from a sample.
+ *
+ * Usage: java ProximityBench [ships [updates [area-side-nm]]]
+ */
+public class ProximityBench {
+    private static final String MYNAME = "ProximityBench";
+    private static final int DEFAULT_SHIPS = 10000;
+    private static final int DEFAULT_UPDATES = 200000;
+    private static final int DEFAULT_SIDE = 120;
+    private static final double RADIUS = 6.0, CPA = 0.5, TCPA = 20.0;
+    private static final int NAIVE_SAMPLE = 200;
+
+    public static void main(String[] args) throws Exception {
+        int nships = BenchArgs.intArg(MYNAME, args, 0, DEFAULT_SHIPS);
+        int nupdates = BenchArgs.intArg(MYNAME, args, 1, DEFAULT_UPDATES);
+        int side = BenchArgs.intArg(MYNAME, args, 2, DEFAULT_SIDE);
+
+        /* Make a fleet, somewhere in Puget Sound-ish latitudes */
+        Random random = new Random(1);
+        double lat0 = 47.0, lon0 = -123.0;
+        double coslat = Math.cos(Math.toRadians(lat0));
+        PlottableShip[] fleet = new PlottableShip[nships];
+        for (int i = 0; i < nships; i++) {
+            PlottableShip ship = new PlottableShip(PlottableShip.formatMMSI(200000000L + i));
+            ship.setLatitude((float) (lat0 + random.nextDouble() * side / 60.0));
+            ship.setLongitude((float) (lon0 + random.nextDouble() * side / 60.0 / coslat));
+            ship.setSpeedOverGround((float) (random.nextInt(250) / 10.0));
+            ship.setCourseOverGround((float) (random.nextInt(3600) / 10.0));
+            fleet[i] = ship;
+        }
+
+        ProximityAlerts alerts = new ProximityAlerts(RADIUS, CPA, TCPA);
+        long t0 = System.nanoTime();
+        for (PlottableShip ship: fleet)
+            alerts.update(ship);
+        long t1 = System.nanoTime();
+        System.out.format("%d ships over %d x %d nm: initial load %.1f ms, %d alerts%n",
+            nships, side, side, (t1 - t0) / 1e6,
+            alerts.getAlerts(System.currentTimeMillis()).size());
+
+        /* Move ships about, one update at a time */
+        t0 = System.nanoTime();
+        for (int i = 0; i < nupdates; i++) {
+            PlottableShip ship = fleet[random.nextInt(nships)];
+            double rcog = Math.toRadians(ship.getCourseOverGround());
+            double step = ship.getSpeedOverGround() / 360.0;  /* 10 s worth */
+            ship.setLatitude((float) (ship.getLatitude() + step * Math.cos(rcog) / 60.0));
+            ship.setLongitude((float) (ship.getLongitude()
+                + step * Math.sin(rcog) / 60.0 / coslat));
+            ship.markUpdated();
+            alerts.update(ship);
+        }
+        t1 = System.nanoTime();
+        double perUpdate = (t1 - t0) / 1e3 / nupdates;
+        System.out.format("%d updates: %.2f us/update, %.0f updates/s, %d alerts%n",
+            nupdates, perUpdate, 1e6 / perUpdate,
+            alerts.getAlerts(System.currentTimeMillis()).size());
+
+        /* What a naive check against every other ship would cost */
+        int sample = Math.min(NAIVE_SAMPLE, nships);
+        double sink = 0.0;
+        t0 = System.nanoTime();
+        for (int i = 0; i < sample; i++)
+            sink += naiveCheck(fleet, fleet[i], coslat);
+        t1 = System.nanoTime();
+        double naive = (t1 - t0) / 1e3 / sample;
+        System.out.format("naive all-pairs: %.2f us/update (%.1fx slower)%n",
+            naive, naive / perUpdate);
+        blackHole = sink;
+    }
+
+    /* keeps the naive check from being optimized away */
+    private static volatile double blackHole;
+
+    /* bare-bones CPA check of one ship against all others */
+    private static double naiveCheck(PlottableShip[] fleet, PlottableShip a, double coslat) {
+        double ret = 0.0;
+        double ar = Math.toRadians(a.getCourseOverGround());
+        double avx = a.getSpeedOverGround() * Math.sin(ar);
+        double avy = a.getSpeedOverGround() * Math.cos(ar);
+        for (PlottableShip b: fleet) {
+            if (b == a)
+                continue;
+            double dx = (b.getLongitude() - a.getLongitude()) * 60.0 * coslat;
+            double dy = (b.getLatitude() - a.getLatitude()) * 60.0;
+            double br = Math.toRadians(b.getCourseOverGround());
+            double dvx = b.getSpeedOverGround() * Math.sin(br) - avx;
+            double dvy = b.getSpeedOverGround() * Math.cos(br) - avy;
+            double dv2 = dvx * dvx + dvy * dvy;
+            if (dv2 < 1e-9)
+                continue;
+            double t = -(dx * dvx + dy * dvy) / dv2;
+            double cx = dx + dvx * t, cy = dy + dvy * t;
+            if (t >= 0 && cx * cx + cy * cy < CPA * CPA)
+                ret += t;
+        }
+        return ret;
+    }
+}
@@ -11,10 +11,35 @@ import javax.xml.stream.*;
  * @since 2016-01-22
  *
  * Serves a single HTTP request. This is super-simple; we ignore all request
- * data and always serve the same XML.
+ * data save the query string, and always serve the same XML.
+ *
+ * If the query string has a BBOX (as sent by a NetworkLink whose
+ * viewRefreshMode is onStop) or zoom parameter, ships within the box are
+ * aggregated into grid cells (see ShipClusters) so that dense areas do not
+ * produce huge numbers of overlapping placemarks.
+ *
+ * Any collision-risk alerts are plotted as lines joining the ships
+ * concerned. A request for the path /alerts.json gets just the alerts, as
+ * JSON, instead.
  */
 public class RequestServer extends SaneThread {
     private static final String BODY_CODING = "UTF-8";
+    private static final String ALERTS_PATH = "/alerts.json";
+
+    /* level-of-detail settings: grid cells across the view, and the most
+       ships a cell can have before they get clustered */
+    private static final int MAX_LOD_GRID = 1024;
+    private static final int LOD_GRID = Math.max(1, Math.min(MAX_LOD_GRID,
+        Integer.getInteger("kmldecoder.lod.grid", 32)));
+    private static final int LOD_THRESHOLD =
+        Integer.getInteger("kmldecoder.lod.threshold", 5);
+
+    /* most alerts plotted along with clusters; like them, bounded */
+    private static final int LOD_ALERTS = Math.max(1,
+        Integer.getInteger("kmldecoder.lod.alerts", 200));
+
+    /* zoom levels beyond this are treated as this */
+    private static final int MAX_ZOOM = 20;
 
     private InputStream sock_in;
     private OutputStream sock_out;
@@ -38,24 +63,48 @@ public class RequestServer extends SaneThread {
      * Run the thread.
      */
     void runn() throws Exception {
-        SimpleDateFormat iso8601 = new SimpleDateFormat("HH:mm:ss'Z'");
-        iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+        TextBuffer text = new TextBuffer();
 
-        /* just throw away any request data */
+        /* get the query from the request line, and throw away the rest */
         BufferedReader reader = new BufferedReader(
         	new InputStreamReader(sock_in, StandardCharsets.ISO_8859_1));
-        String line;
-        while ((line = reader.readLine()) != null)
-        	if (line.isEmpty()) break;
+        ShipClusters clusters = null;
+        boolean wantAlerts = false;
+        String line = reader.readLine();
+        if (line != null) {
+            String[] parts = line.split(" ");
+            if (parts.length >= 2) {
+                wantAlerts = parts[1].equals(ALERTS_PATH)
+                    || parts[1].startsWith(ALERTS_PATH + "?");
+                clusters = getClusters(parts[1]);
+            }
+        }
+        while (line != null && !line.isEmpty())
+        	line = reader.readLine();
 
         /* write response headers */
         OutputStreamWriter hwriter = new OutputStreamWriter(sock_out,
         	StandardCharsets.US_ASCII);
         hwriter.write("HTTP/1.0 200 OK\r\n");
-        hwriter.write("Content-Type: text/xml; charset=\""+BODY_CODING+"\"\r\n");
+        hwriter.write("Content-Type: " + (wantAlerts ? "application/json" : "text/xml")
+            + "; charset=\""+BODY_CODING+"\"\r\n");
         hwriter.write("\r\n");
         hwriter.flush();
 
+        /* the alert feed is simple enough to write by hand */
+        ProximityAlerts alerts = ships.getProximityAlerts();
+        long now = System.currentTimeMillis();
+        if (wantAlerts) {
+            Writer jwriter = new OutputStreamWriter(sock_out, BODY_CODING);
+            if (alerts == null)
+                jwriter.write(String.format("[]%n"));
+            else
+                alerts.writeJSON(jwriter, now);
+            jwriter.flush();
+            sock_out.close();
+            return;
+        }
+
         /* prepare to write some XML */
         XMLOutputFactory factory = XMLOutputFactory.newInstance();
         XMLStreamWriter bwriter = factory.createXMLStreamWriter(sock_out, BODY_CODING);
@@ -65,12 +114,91 @@ public class RequestServer extends SaneThread {
         bwriter.writeStartElement("kml");
         bwriter.writeAttribute("xmlns", "http://www.opengis.net/kml/2.2");
         bwriter.writeStartElement("Document");
-        for(PlottableShip ship: ships.getCurrent())
-            ship.plot(bwriter, iso8601);
+        if (clusters == null) {
+            for(PlottableShip ship: ships.getCurrent())
+                ship.plot(bwriter, text);
+        } else {
+            ships.visit(clusters);
+            clusters.plot(bwriter, text);
+        }
+        if (alerts != null) {
+            if (clusters == null)
+                alerts.plot(bwriter, text, now);
+            else
+                alerts.plot(bwriter, text, now, clusters, LOD_ALERTS);
+        }
         bwriter.writeEndDocument();
         bwriter.flush();
 
         /* finish up and exit */
         sock_out.close();
     }
+
+    /**
+     * Parse a request URI, and if it asks for level-of-detail
+     * aggregation, return an empty ShipClusters object to do it.
+     *
+     * @param uri Request URI from HTTP request line.
+     * @return ShipClusters object, or null if not wanted.
+     */
+    private ShipClusters getClusters(String uri) {
+        int q = uri.indexOf('?');
+        if (q < 0)
+            return null;
+
+        double[] bbox = null;
+        Integer zoom = null;
+        try {
+            for (String param: uri.substring(q + 1).split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0)
+                    continue;
+                String key = param.substring(0, eq);
+                String value = URLDecoder.decode(param.substring(eq + 1), BODY_CODING);
+                if (key.equals("BBOX")) {
+                    String[] edges = value.split(",");
+                    if (edges.length != 4)
+                        continue;
+                    bbox = new double[4];
+                    for (int i = 0; i < 4; i++)
+                        bbox[i] = Double.parseDouble(edges[i]);
+                } else if (key.equals("zoom")) {
+                    zoom = Integer.valueOf(value);
+                }
+            }
+        } catch (NumberFormatException|UnsupportedEncodingException exc) {
+            return null;
+        }
+        if (bbox == null && zoom == null)
+            return null;
+
+        /* no bounding box means the whole world; nor can one be bigger */
+        if (bbox == null)
+            bbox = new double[] { -180.0, -90.0, 180.0, 90.0 };
+        double width = bbox[2] - bbox[0];
+        if (width <= 0.0)
+            width += 360.0;
+        if (width > 360.0) {
+            bbox[0] = -180.0;
+            bbox[2] = 180.0;
+            width = 360.0;
+        }
+        bbox[1] = Math.max(bbox[1], -90.0);
+        bbox[3] = Math.min(bbox[3], 90.0);
+        double height = bbox[3] - bbox[1];
+
+        /* Cells are sized as if the view were 360/2^zoom degrees across,
+           but are never so small that more than LOD_GRID of them fit
+           across the actual view either way; that is what bounds the
+           size of the response. */
+        double cellSize = Math.max(width, height) / LOD_GRID;
+        if (zoom != null) {
+            int z = Math.max(0, Math.min(zoom, MAX_ZOOM));
+            cellSize = Math.max(cellSize, 360.0 / (1 << z) / LOD_GRID);
+        }
+        if (!(cellSize > 0.0))
+            return null;
+        return new ShipClusters(bbox[0], bbox[1], bbox[2], bbox[3],
+            cellSize, LOD_THRESHOLD);
+    }
 }
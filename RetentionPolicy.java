@@ -0,0 +1,124 @@
+import dk.tbsalling.aismessages.ais.messages.*;
+import dk.tbsalling.aismessages.ais.messages.types.NavigationStatus;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-14
+ *
+ * Says how long to keep ships around after they stop reporting, and how
+ * many of them to keep at most. Different kinds of ships report at very
+ * different rates, so they get different lifetimes: Class B ships and
+ * moored or anchored ones report rarely, base stations report often but
+ * are seldom of interest, and fast movers soon leave the area anyway.
+ *
+ * All times are in milliseconds. A limit of zero means no limit.
+ */
+public class RetentionPolicy {
+    /**
+     * Zero-argument constructor. Sets default values.
+     *
+     * @return Constructed object.
+     */
+    public RetentionPolicy() {
+        setDefaultLife(10 * 60 * 1000);
+        setClassBLife(20 * 60 * 1000);
+        setMooredLife(30 * 60 * 1000);
+        setBaseStationLife(3 * 60 * 1000);
+        setFastLife(5 * 60 * 1000);
+        setFastSpeed(25.0f);
+        setMaxShips(50000);
+        setMaxBytes(0);
+    }
+
+    private long defaultLife;
+    public long getDefaultLife() {
+        return defaultLife;
+    }
+    public void setDefaultLife(long value) {
+        this.defaultLife = value;
+    }
+
+    private long classBLife;
+    public long getClassBLife() {
+        return classBLife;
+    }
+    public void setClassBLife(long value) {
+        this.classBLife = value;
+    }
+
+    private long mooredLife;
+    public long getMooredLife() {
+        return mooredLife;
+    }
+    public void setMooredLife(long value) {
+        this.mooredLife = value;
+    }
+
+    private long baseStationLife;
+    public long getBaseStationLife() {
+        return baseStationLife;
+    }
+    public void setBaseStationLife(long value) {
+        this.baseStationLife = value;
+    }
+
+    private long fastLife;
+    public long getFastLife() {
+        return fastLife;
+    }
+    public void setFastLife(long value) {
+        this.fastLife = value;
+    }
+
+    private float fastSpeed;
+    public float getFastSpeed() {
+        return fastSpeed;
+    }
+    public void setFastSpeed(float value) {
+        this.fastSpeed = value;
+    }
+
+    private int maxShips;
+    public int getMaxShips() {
+        return maxShips;
+    }
+    public void setMaxShips(int value) {
+        this.maxShips = value;
+    }
+
+    private long maxBytes;
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    public void setMaxBytes(long value) {
+        this.maxBytes = value;
+    }
+
+    /**
+     * Determine how long a ship should be kept after receiving a message
+     * from it.
+     *
+     * @param message Any received AISMessage.
+     * @return Lifetime, or -1 if the message says nothing about what kind
+     *     of ship this is (so whatever lifetime it had should stand).
+     */
+    public long lifetimeFor(AISMessage message) {
+        if (message instanceof BaseStationReport)
+            return baseStationLife;
+        if (message instanceof StandardClassBCSPositionReport
+                || message instanceof ExtendedClassBEquipmentPositionReport
+                || message instanceof ClassBCSStaticDataReport)
+            return classBLife;
+        if (message instanceof PositionReport) {
+            NavigationStatus status = ((PositionReport) message).getNavigationStatus();
+            if (status == NavigationStatus.Moored || status == NavigationStatus.AtAnchor)
+                return mooredLife;
+            Float sog = ((PositionReport) message).getSpeedOverGround();
+            if (sog != null && sog > fastSpeed && sog < PlottableShip.SOG_UNAVAILABLE)
+                return fastLife;
+            return defaultLife;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.*;
+import dk.tbsalling.aismessages.nmea.messages.NMEAMessage;
+import dk.tbsalling.aismessages.ais.messages.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-18
+ *
+ * Measures how update throughput scales with the number of updater
+ * threads. A synthetic feed of Class A position reports for a fleet of
+ * ships is decoded up front, then fed by one thread (as KMLDecoder's main
+ * thread does) through ConflatingQueues to 1, 2, ... N ShipUpdaters, which
+ * apply it to a fresh set of ships with collision-risk alerts on. All
+ * settings are KMLDecoder's defaults, save that the queues never shed
+ * (so that every message gets applied) and names are not looked up.
+ *
+ * Usage: java ShardBench [ships [messages [max-threads]]]
+ */
+public class ShardBench {
+    private static final String MYNAME = "ShardBench";
+    private static final int DEFAULT_SHIPS = 10000;
+    private static final int DEFAULT_MESSAGES = 1000000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int nships = BenchArgs.intArg(MYNAME, args, 0, DEFAULT_SHIPS);
+        int nmessages = BenchArgs.intArg(MYNAME, args, 1, DEFAULT_MESSAGES);
+        int maxThreads = BenchArgs.intArg(MYNAME, args, 2, Runtime.getRuntime().availableProcessors());
+
+        /* Build the feed; decoding is not what we are measuring */
+        System.out.format("Decoding %d messages for %d ships...%n", nmessages, nships);
+        Random random = new Random(1);
+        String[] mmsis = new String[nmessages];
+        AISMessage[] messages = new AISMessage[nmessages];
+        for (int i = 0; i < nmessages; i++) {
+            long mmsi = 200000000L + random.nextInt(nships);
+            mmsis[i] = PlottableShip.formatMMSI(mmsi);
+            messages[i] = AISMessage.create(NMEAMessage.fromString(positionReport(
+                mmsi, 47.0 + random.nextDouble(), -123.0 + random.nextDouble(),
+                random.nextInt(300) / 10.0, random.nextInt(3600) / 10.0)));
+        }
+
+        System.out.format("%d processors, %d shards%n",
+            Runtime.getRuntime().availableProcessors(), maxThreads);
+        System.out.println("(messages offered, updates applied after coalescing,"
+            + " and alert revisions made meanwhile, per second)");
+        System.out.format("%8s %14s %14s %14s %8s%n", "threads", "messages/s",
+            "updates/s", "alerts/s", "speedup");
+        double base = 0.0;
+        for (int nthreads = 1; nthreads <= maxThreads; nthreads++) {
+            double[] best = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                double[] result = run(mmsis, messages, nthreads, maxThreads);
+                if (best == null || result[0] > best[0])
+                    best = result;
+            }
+            if (nthreads == 1)
+                base = best[0];
+            System.out.format("%8d %14.0f %14.0f %14.0f %8.2f%n", nthreads,
+                best[0], best[1], best[2], best[0] / base);
+        }
+    }
+
+    /* apply all messages using nthreads updaters; returns messages offered,
+       updates applied, and alert revisions made, per second. The alerts
+       are revised by a thread of their own, which coalesces movements
+       when it falls behind, so the updaters do not wait on it. */
+    private static double[] run(String[] mmsis, AISMessage[] messages,
+            int nthreads, int nshards) throws Exception {
+        AlertUpdater alerts = new AlertUpdater(new ProximityAlerts(
+            KMLDecoder.DEFAULT_CPA_RADIUS, KMLDecoder.DEFAULT_CPA_DISTANCE,
+            KMLDecoder.DEFAULT_CPA_TIME));
+        alerts.start();
+        PlottableShips ships = new PlottableShips(nshards, alerts,
+            new RetentionPolicy());
+        ConflatingQueue[] queues = new ConflatingQueue[nthreads];
+        ShipUpdater[] updaters = new ShipUpdater[nthreads];
+        int capacity = Math.max(KMLDecoder.DEFAULT_QUEUE_CAPACITY / nthreads, 1);
+        for (int i = 0; i < nthreads; i++) {
+            queues[i] = new ConflatingQueue(capacity, capacity,
+                ConflatingQueue.Policy.BLOCK);
+            updaters[i] = new ShipUpdater(queues[i], ships, null, null);
+            updaters[i].start();
+        }
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < mmsis.length; i++)
+            queues[PlottableShips.stripe(mmsis[i], nthreads)].offer(mmsis[i], messages[i]);
+        for (ConflatingQueue queue: queues)
+            queue.close();
+        for (ShipUpdater updater: updaters)
+            updater.join();
+        long elapsed = System.nanoTime() - t0;
+        long revised = alerts.getApplied();
+        alerts.close();
+        alerts.join();
+
+        long applied = mmsis.length;
+        for (ConflatingQueue queue: queues)
+            applied -= queue.getCoalesced();
+        return new double[] { mmsis.length * 1e9 / elapsed,
+            applied * 1e9 / elapsed, revised * 1e9 / elapsed };
+    }
+
+    /**
+     * Make an NMEA sentence containing a type 1 (Class A) position report.
+     *
+     * @param mmsi MMSI of the reporting ship.
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @param sog Speed over ground in knots.
+     * @param cog Course over ground in degrees.
+     * @return A String.
+     */
+    public static String positionReport(long mmsi, double lat, double lon,
+            double sog, double cog) {
+        StringBuilder bits = new StringBuilder();
+        addBits(bits, 1, 6);        /* message type */
+        addBits(bits, 0, 2);        /* repeat indicator */
+        addBits(bits, mmsi, 30);
+        addBits(bits, 0, 4);        /* under way using engine */
+        addBits(bits, -128, 8);     /* rate of turn not available */
+        addBits(bits, Math.round(sog * 10.0), 10);
+        addBits(bits, 0, 1);        /* position accuracy */
+        addBits(bits, Math.round(lon * 600000.0), 28);
+        addBits(bits, Math.round(lat * 600000.0), 27);
+        addBits(bits, Math.round(cog * 10.0), 12);
+        addBits(bits, 511, 9);      /* true heading not available */
+        addBits(bits, 60, 6);       /* time stamp not available */
+        addBits(bits, 0, 2);        /* manoeuvre indicator */
+        addBits(bits, 0, 3);        /* spare */
+        addBits(bits, 0, 1);        /* RAIM */
+        addBits(bits, 0, 19);       /* radio status */
+
+        StringBuilder body = new StringBuilder("AIVDM,1,1,,A,");
+        for (int i = 0; i < bits.length(); i += 6) {
+            int v = Integer.parseInt(bits.substring(i, i + 6), 2);
+            body.append((char) (v < 40 ? v + 48 : v + 56));
+        }
+        body.append(",0");
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++)
+            sum ^= body.charAt(i);
+        return String.format("!%s*%02X", body, sum);
+    }
+
+    private static void addBits(StringBuilder bits, long value, int width) {
+        for (int i = width - 1; i >= 0; i--)
+            bits.append(((value >> i) & 1) == 0 ? '0' : '1');
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-08
+ *
+ * Aggregates ships within a bounding box into a grid of cells, for when
+ * there are too many ships to sensibly plot individually. Cells with few
+ * enough ships in them get their ships plotted as normal; the rest get
+ * a single placemark giving the count, centroid, and dominant heading of
+ * the ships in them. Since each cell yields a bounded number of
+ * placemarks, so does the whole grid, no matter how many ships there are.
+ *
+ * Fed by PlottableShips.visit, so ships need not be copied unless they
+ * end up being plotted individually.
+ *
+ * A new grid is built for each request rather than kept up to date as
+ * ships move. Every request brings its own bounding box and zoom, so no
+ * one grid would serve them all, and requests come far less often than
+ * updates (one per view every few seconds, against hundreds of messages
+ * a second), so keeping per-cell totals current would cost more than it
+ * saves and put the cost on the updater threads instead of the rare
+ * reader. Building one is a single pass over the ships, with a shard
+ * locked only while it is visited.
+ */
+public class ShipClusters implements PlottableShips.Visitor {
+    /* number of heading sectors used to determine dominant heading */
+    private static final int SECTORS = 8;
+    private static final float SECTOR_SIZE = 360.0f / SECTORS;
+
+    /* decimal places for positions */
+    private static final int POS_PLACES = 6;
+
+    /* most cells a grid may have, so that cell keys cannot overflow */
+    private static final double MAX_CELLS = 1e15;
+
+    private double west, south, east, north;
+    private double cellSize;
+    private int threshold;
+    private long ncols;
+    private HashMap<Long, Cell> cells;
+
+    /**
+     * Constructor.
+     *
+     * @param west Western edge of bounding box, in degrees.
+     * @param south Southern edge of bounding box, in degrees.
+     * @param east Eastern edge of bounding box, in degrees (may be less
+     *     than west if the box crosses the antimeridian).
+     * @param north Northern edge of bounding box, in degrees.
+     * @param cellSize Size of each (square) grid cell, in degrees.
+     * @param threshold Cells with more than this many ships get clustered.
+     * @return Constructed object.
+     * @throws IllegalArgumentException If the cell size is not positive,
+     *     or so small that the grid would have too many cells.
+     */
+    public ShipClusters(double west, double south, double east, double north,
+            double cellSize, int threshold) {
+        if (!(cellSize > 0.0))
+            throw new IllegalArgumentException("cell size must be positive");
+        if (east < west)
+            east += 360.0;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.north = north;
+        this.cellSize = cellSize;
+        this.threshold = threshold;
+        double nrows = Math.ceil((north - south) / cellSize) + 1;
+        double dcols = Math.ceil((east - west) / cellSize) + 1;
+        if (!(nrows * dcols <= MAX_CELLS))
+            throw new IllegalArgumentException("cell size too small");
+        ncols = (long) dcols;
+        cells = new HashMap<Long, Cell>();
+    }
+
+    /**
+     * Add a ship to whatever cell it falls in. Ships with unknown
+     * positions, or positions outside the bounding box, are ignored.
+     *
+     * @param ship Ship to add. Copied if it needs to be retained.
+     */
+    public void visit(PlottableShip ship) {
+        Float lat = ship.getLatitude();
+        Float lon = ship.getLongitude();
+        if (lat == null || lon == null || !contains(lat, lon))
+            return;
+        double x = lon;
+        if (x < west)
+            x += 360.0;
+
+        long col = (long) ((x - west) / cellSize);
+        long row = (long) ((lat - south) / cellSize);
+        Long key = row * ncols + col;
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(ship, x, lat);
+    }
+
+    /**
+     * Is a position within our bounding box?
+     *
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @return true if so
+     */
+    public boolean contains(double lat, double lon) {
+        if (lon < west)
+            lon += 360.0;
+        return lon <= east && lat >= south && lat <= north;
+    }
+
+    /**
+     * Get number of cells having at least one ship in them.
+     *
+     * @return An int value.
+     */
+    public int size() {
+        return cells.size();
+    }
+
+    /**
+     * Write out a KML fragment representing the ships in all cells.
+     *
+     * @param writer An XMLStreamWriter.
+     * @param text A TextBuffer used to format numbers and times.
+     */
+    public void plot(XMLStreamWriter writer, TextBuffer text) throws XMLStreamException {
+        for (Cell cell: cells.values())
+            cell.plot(writer, text);
+    }
+
+    /* one grid cell */
+    private class Cell {
+        private int count;
+        private double sumLat, sumLon;
+        private int[] sectors;
+        private ArrayList<PlottableShip> members;
+
+        public Cell() {
+            count = 0;
+            sumLat = sumLon = 0.0;
+            sectors = new int[SECTORS];
+            members = new ArrayList<PlottableShip>();
+        }
+
+        public void add(PlottableShip ship, double lon, double lat) {
+            count++;
+            sumLat += lat;
+            sumLon += lon;
+            Float cog = ship.getCourseOverGround();
+            /* 360 means "not available" in AIS */
+            if (cog != null && cog >= 0.0f && cog < 360.0f)
+                sectors[(int) (cog / SECTOR_SIZE)]++;
+            if (members == null)
+                return;
+            if (count > threshold)
+                members = null;  /* too dense; no longer worth keeping */
+            else
+                members.add(ship.clone());
+        }
+
+        /* returns center of dominant sector, or -1 if no headings */
+        private int dominantHeading() {
+            int best = -1;
+            for (int i = 0; i < SECTORS; i++)
+                if (sectors[i] > 0 && (best < 0 || sectors[i] > sectors[best]))
+                    best = i;
+            return best < 0 ? -1 : Math.round(best * SECTOR_SIZE + SECTOR_SIZE / 2);
+        }
+
+        public void plot(XMLStreamWriter writer, TextBuffer text) throws XMLStreamException {
+            if (members != null) {
+                for (PlottableShip ship: members)
+                    ship.plot(writer, text);
+                return;
+            }
+
+            double lat = sumLat / count;
+            double lon = sumLon / count;
+            if (lon > 180.0)
+                lon -= 360.0;
+            int heading = dominantHeading();
+
+            writer.writeStartElement("Placemark");
+
+            writer.writeStartElement("name");
+            text.clear().append(count, 1).append(" ships").writeTo(writer);
+            writer.writeEndElement();
+
+            writer.writeStartElement("Point");
+            writer.writeStartElement("coordinates");
+            text.clear().append(lon, POS_PLACES).append(',')
+                .append(lat, POS_PLACES).append(",0").writeTo(writer);
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            writer.writeStartElement("description");
+            text.clear().append("Ships: ").append(count, 1);
+            text.append("<br>Centroid: ").append(lat, POS_PLACES).append(", ")
+                .append(lon, POS_PLACES);
+            text.append("<br>Dominant heading: ");
+            if (heading < 0)
+                text.append("(unknown)");
+            else
+                text.append(heading, 1).append("˚");
+            text.append("<br>").writeTo(writer);
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-12
+ *
+ * Takes decoded messages off a ConflatingQueue and applies them to the
+ * ships being tracked, so that decoding need not wait on that. If this
+ * thread dies, it closes its queue, so that whoever is offering messages
+ * to it gets an exception rather than waiting forever.
+ */
+public class ShipUpdater extends SaneThread {
+    private ConflatingQueue queue;
+    private PlottableShips ships;
+    private SimpleDBHash names;
+    private SimpleDBHash calls;
+
+    /**
+     * Constructor.
+     *
+     * @return Constructed object.
+     * @param queue Queue to take messages from.
+     * @param ships Ships to update.
+     * @param names Persistent MMSI to ship name mappings, or null to
+     *     not look names and callsigns up.
+     * @param calls Persistent MMSI to callsign mappings (null if names is).
+     */
+    public ShipUpdater(ConflatingQueue queue, PlottableShips ships,
+            SimpleDBHash names, SimpleDBHash calls) {
+        this.queue = queue;
+        this.ships = ships;
+        this.names = names;
+        this.calls = calls;
+        setDaemon(true);
+    }
+
+    /**
+     * Run the thread. Exits once the queue is closed and drained.
+     */
+    void runn() throws Exception {
+        ConflatingQueue.Entry entry;
+        try {
+            while ((entry = queue.take()) != null) {
+                /* Purging happens as part of the update, for the shard
+                   updated only, and in the RequestServer threads. */
+                String mmsi = entry.getMMSI();
+                if (ships.addOrUpdate(mmsi, entry.getMessage()) && names != null)
+                    ships.rememberNameCall(mmsi, names.get(mmsi), calls.get(mmsi));
+            }
+        } finally {
+            queue.close();
+        }
+    }
+}
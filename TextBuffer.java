@@ -0,0 +1,207 @@
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * @author David Barts
+ * @version 0.1
+ * @since 2016-02-16
+ *
+ * A reusable character buffer for building up text without creating
+ * garbage, which is what building strings out of boxed numbers does a lot
+ * of. Only does what we need (strings, integers, fixed-point numbers and
+ * times of day). Not thread-safe; each thread should have its own.
+ */
+public class TextBuffer {
+    private static final long[] POWERS = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+    };
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private char[] buf;
+    private int len;
+
+    /**
+     * Zero-argument constructor.
+     *
+     * @return Constructed object.
+     */
+    public TextBuffer() {
+        buf = new char[128];
+        len = 0;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+
+    /**
+     * Empty the buffer.
+     *
+     * @return This object.
+     */
+    public TextBuffer clear() {
+        len = 0;
+        return this;
+    }
+
+    /**
+     * Get the length of the buffered text.
+     *
+     * @return An int value.
+     */
+    public int length() {
+        return len;
+    }
+
+    /**
+     * Append a string.
+     *
+     * @param value String to append; null appends nothing.
+     * @return This object.
+     */
+    public TextBuffer append(String value) {
+        if (value == null)
+            return this;
+        int n = value.length();
+        ensure(n);
+        value.getChars(0, n, buf, len);
+        len += n;
+        return this;
+    }
+
+    /**
+     * Append a character.
+     *
+     * @param value Character to append.
+     * @return This object.
+     */
+    public TextBuffer append(char value) {
+        ensure(1);
+        buf[len++] = value;
+        return this;
+    }
+
+    /**
+     * Append an integer in decimal, padded with leading zeroes to at
+     * least the specified width.
+     *
+     * @param value Value to append.
+     * @param width Minimum number of digits.
+     * @return This object.
+     */
+    public TextBuffer append(long value, int width) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE)
+                return append(Long.toString(value));
+            append('-');
+            value = -value;
+        }
+        int ndigits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            ndigits++;
+        int n = Math.max(ndigits, width);
+        ensure(n);
+        for (int i = len + n - 1; i >= len; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        len += n;
+        return this;
+    }
+
+    /**
+     * Append a number with a fixed number of decimal places.
+     *
+     * @param value Value to append.
+     * @param places Number of decimal places (0 to 8).
+     * @return This object.
+     */
+    public TextBuffer append(double value, int places) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return append(Double.toString(value));
+        return appendScaled(value < 0,
+            Math.round(Math.abs(value) * POWERS[places]), places);
+    }
+
+    /**
+     * Append a float with a fixed number of decimal places. Unlike
+     * widening it to a double first, digits beyond the float's own
+     * precision come out as zeroes, e.g. 47.6062f with 6 places gives
+     * 47.606200, not 47.606201.
+     *
+     * @param value Value to append.
+     * @param places Number of decimal places (0 to 8).
+     * @return This object.
+     */
+    public TextBuffer append(float value, int places) {
+        if (Float.isNaN(value) || Float.isInfinite(value))
+            return append(Float.toString(value));
+        /* use the fewest places that still read back as the same float */
+        float abs = Math.abs(value);
+        for (int k = 0; k < places; k++) {
+            long scaled = Math.round((double) abs * POWERS[k]);
+            if ((float) ((double) scaled / POWERS[k]) == abs)
+                return appendScaled(value < 0, scaled * POWERS[places - k], places);
+        }
+        return append((double) value, places);
+    }
+
+    /* append scaled / 10^places, in fixed point */
+    private TextBuffer appendScaled(boolean negative, long scaled, int places) {
+        if (negative && scaled != 0)
+            append('-');
+        append(scaled / POWERS[places], 1);
+        if (places > 0) {
+            append('.');
+            append(scaled % POWERS[places], places);
+        }
+        return this;
+    }
+
+    /**
+     * Append the UTC time of day, in the form HH:mm:ss followed by Z.
+     *
+     * @param millis Milliseconds since the epoch.
+     * @return This object.
+     */
+    public TextBuffer appendTime(long millis) {
+        int secs = (int) (millis / 1000 % SECONDS_PER_DAY);
+        if (secs < 0)
+            secs += SECONDS_PER_DAY;
+        append(secs / 3600, 2).append(':');
+        append(secs / 60 % 60, 2).append(':');
+        return append(secs % 60, 2).append('Z');
+    }
+
+    /**
+     * Write the buffered text as XML character data, then empty the
+     * buffer.
+     *
+     * @param writer An XMLStreamWriter.
+     */
+    public void writeTo(XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeCharacters(buf, 0, len);
+        len = 0;
+    }
+
+    /**
+     * Write the buffered text to a Writer, then empty the buffer.
+     *
+     * @param writer A Writer.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(buf, 0, len);
+        len = 0;
+    }
+
+    /**
+     * Return the buffered text as a string.
+     *
+     * @return A String.
+     */
+    public String toString() {
+        return new String(buf, 0, len);
+    }
+}